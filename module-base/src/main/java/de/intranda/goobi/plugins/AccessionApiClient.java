@@ -0,0 +1,335 @@
+package de.intranda.goobi.plugins;
+
+import java.net.ConnectException;
+import java.net.UnknownHostException;
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.configuration.XMLConfiguration;
+import org.apache.commons.lang3.StringUtils;
+import org.goobi.production.cli.helper.StringPair;
+
+import jakarta.ws.rs.ProcessingException;
+import jakarta.ws.rs.client.Client;
+import jakarta.ws.rs.client.ClientBuilder;
+import jakarta.ws.rs.client.Invocation.Builder;
+import jakarta.ws.rs.client.WebTarget;
+import jakarta.ws.rs.core.HttpHeaders;
+import jakarta.ws.rs.core.Response;
+import jakarta.ws.rs.core.Response.StatusType;
+import lombok.Getter;
+import lombok.extern.log4j.Log4j;
+
+/**
+ * Client for the accession API, shared by all exports as long as the plugin is loaded.
+ *
+ * The underlying JAX-RS client keeps its connections alive between requests and uses the configured connect and read timeouts. Server errors and
+ * failed connections are retried with exponential backoff and jitter, a Retry-After header sent by the server is respected. Other errors, e.g. a
+ * read timeout, are not retried, because the server may have accepted the request already and the POST is not idempotent. After too many failed
+ * calls in a row the circuit breaker opens and all calls fail immediately until the configured time has passed. Calls that end with an exception,
+ * e.g. because the export was cancelled, are counted as failures as well.
+ *
+ * If the settings change, the previous client is closed as soon as its running calls are finished.
+ */
+@Log4j
+public class AccessionApiClient {
+
+    private static AccessionApiClient instance;
+
+    private final Settings settings;
+    private final Client client;
+
+    // circuit breaker state
+    private int consecutiveFailures = 0;
+    private long openUntil = 0;
+    private boolean trialRunning = false;
+
+    // running calls, the client of a replaced instance is closed after the last one
+    private int activeCalls = 0;
+    private boolean retired = false;
+
+    private AccessionApiClient(Settings settings) {
+        this.settings = settings;
+        client = ClientBuilder.newBuilder()
+                .connectTimeout(settings.connectTimeout, TimeUnit.SECONDS)
+                .readTimeout(settings.readTimeout, TimeUnit.SECONDS)
+                .build();
+    }
+
+    /**
+     * Get the shared client. A new client is created only if the settings in the configuration file were changed.
+     *
+     * @param config
+     * @return
+     */
+    public static synchronized AccessionApiClient getInstance(XMLConfiguration config) {
+        Settings settings = new Settings(config);
+        if (instance == null || !instance.settings.equals(settings)) {
+            if (instance != null) {
+                instance.retire();
+            }
+            instance = new AccessionApiClient(settings);
+        }
+        return instance;
+    }
+
+    /**
+     * Send the POST request to start the accession of an object
+     *
+     * @param apiBaseUrl
+     * @param objectId
+     * @param endpoint
+     * @param queryParameter
+     * @param accessToken
+     * @return the result of the last attempt
+     * @throws InterruptedException
+     */
+    public AccessionResponse post(String apiBaseUrl, String objectId, String endpoint, List<StringPair> queryParameter, String accessToken)
+            throws InterruptedException {
+        return post(apiBaseUrl, objectId, endpoint, queryParameter, accessToken, settings.maxRetries);
+    }
+
+    /**
+     * Send the POST request with a different number of retries. A caller that retries failed requests itself uses 0, otherwise the retries of both
+     * layers multiply and the request is sent more often than intended.
+     *
+     * @param apiBaseUrl
+     * @param objectId
+     * @param endpoint
+     * @param queryParameter
+     * @param accessToken
+     * @param maxRetries number of retries after the first attempt
+     * @return the result of the last attempt
+     * @throws InterruptedException
+     */
+    public AccessionResponse post(String apiBaseUrl, String objectId, String endpoint, List<StringPair> queryParameter, String accessToken,
+            int maxRetries) throws InterruptedException {
+        Permission permission = acquirePermission();
+        if (permission == Permission.REJECTED) {
+            return new AccessionResponse(0, "Accession API is not available, circuit breaker is open", 0);
+        }
+        // the circuit breaker must always get a result, otherwise a trial call would keep it open forever
+        boolean success = false;
+        try {
+            AccessionResponse result = sendRequest(apiBaseUrl, objectId, endpoint, queryParameter, accessToken, Math.max(0, maxRetries));
+            success = !result.isRetryable();
+            return result;
+        } finally {
+            recordResult(permission, success);
+        }
+    }
+
+    private AccessionResponse sendRequest(String apiBaseUrl, String objectId, String endpoint, List<StringPair> queryParameter, String accessToken,
+            int maxRetries) throws InterruptedException {
+        WebTarget target = client.target(apiBaseUrl).path(objectId).path(endpoint);
+        for (StringPair sp : queryParameter) {
+            target = target.queryParam(sp.getOne(), sp.getTwo());
+        }
+
+        AccessionResponse result = null;
+        for (int attempt = 1; attempt <= maxRetries + 1; attempt++) {
+            long retryAfter = -1;
+            Builder requestBuilder = target.request();
+            log.debug("Sending POST request to " + target.getUri() + " (attempt " + attempt + ")");
+            requestBuilder.header("Authorization", accessToken);
+            try (Response response = requestBuilder.post(null)) {
+                StatusType type = response.getStatusInfo();
+                result = new AccessionResponse(type.getStatusCode(), type.getReasonPhrase(), attempt);
+                if (!result.isRetryable()) {
+                    break;
+                }
+                retryAfter = parseRetryAfter(response.getHeaderString(HttpHeaders.RETRY_AFTER));
+            } catch (ProcessingException e) {
+                log.warn("Error while calling " + target.getUri() + ": " + e.getMessage());
+                result = new AccessionResponse(0, "Connection error: " + e.getMessage(), attempt);
+                if (!isConnectFailure(e)) {
+                    // the request may have reached the server, sending it again could start a second accession
+                    log.warn("No response to POST request to " + target.getUri() + ", the request is not repeated");
+                    break;
+                }
+            }
+
+            if (attempt <= maxRetries) {
+                long wait = getBackoff(attempt);
+                if (retryAfter > settings.maxBackoff) {
+                    log.warn("Server requested to retry after " + retryAfter + " ms, which exceeds the maximum backoff, giving up");
+                    break;
+                }
+                wait = Math.max(wait, retryAfter);
+                log.info("Retrying POST request to " + target.getUri() + " in " + wait + " ms: " + result.getMessage());
+                Thread.sleep(wait);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Check if the connection to the server could not be established, so the request was certainly not received
+     */
+    static boolean isConnectFailure(Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof ConnectException || cause instanceof UnknownHostException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Exponential backoff with jitter, the result is between half and the full backoff value
+     */
+    private long getBackoff(int attempt) {
+        long backoff = Math.min(settings.maxBackoff, settings.initialBackoff * (1L << Math.min(attempt - 1, 20)));
+        return backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+    }
+
+    /**
+     * Parse the value of a Retry-After header, which can contain a number of seconds or a date
+     *
+     * @return the time to wait in ms or -1, if the header is missing or invalid
+     */
+    static long parseRetryAfter(String value) {
+        if (StringUtils.isBlank(value)) {
+            return -1;
+        }
+        if (StringUtils.isNumeric(value.trim())) {
+            return Long.parseLong(value.trim()) * 1000;
+        }
+        try {
+            ZonedDateTime date = ZonedDateTime.parse(value.trim(), DateTimeFormatter.RFC_1123_DATE_TIME);
+            return Math.max(0, Duration.between(ZonedDateTime.now(date.getZone()), date).toMillis());
+        } catch (DateTimeParseException e) {
+            return -1;
+        }
+    }
+
+    private synchronized Permission acquirePermission() {
+        Permission permission = Permission.GRANTED;
+        if (consecutiveFailures >= settings.failureThreshold) {
+            // circuit is open, allow a single trial call after the configured time
+            if (System.currentTimeMillis() < openUntil || trialRunning) {
+                return Permission.REJECTED;
+            }
+            trialRunning = true;
+            permission = Permission.TRIAL;
+        }
+        activeCalls++;
+        return permission;
+    }
+
+    private synchronized void recordResult(Permission permission, boolean success) {
+        // calls that were started before the circuit opened can end while the trial is still running
+        if (permission == Permission.TRIAL) {
+            trialRunning = false;
+        }
+        activeCalls--;
+        if (retired && activeCalls == 0) {
+            client.close();
+        }
+        if (success) {
+            consecutiveFailures = 0;
+        } else {
+            consecutiveFailures++;
+            if (consecutiveFailures >= settings.failureThreshold) {
+                openUntil = System.currentTimeMillis() + settings.openDuration * 1000;
+                log.error("Accession API failed " + consecutiveFailures + " times in a row, rejecting calls for " + settings.openDuration + " s");
+            }
+        }
+    }
+
+    /**
+     * Close the client after the running calls, because the settings were changed
+     */
+    private synchronized void retire() {
+        retired = true;
+        if (activeCalls == 0) {
+            client.close();
+        }
+    }
+
+    /**
+     * Decision of the circuit breaker about a call, a trial call is the single call allowed after the circuit was open
+     */
+    private enum Permission {
+        REJECTED,
+        GRANTED,
+        TRIAL
+    }
+
+    /**
+     * Result of an accession request
+     */
+    @Getter
+    public static class AccessionResponse {
+        /** HTTP status code or 0, if no response was received */
+        private final int statusCode;
+        private final String message;
+        private final int attempts;
+
+        public AccessionResponse(int statusCode, String message, int attempts) {
+            this.statusCode = statusCode;
+            this.message = message;
+            this.attempts = attempts;
+        }
+
+        public boolean isSuccessful() {
+            return statusCode >= 200 && statusCode < 300;
+        }
+
+        /**
+         * Check if the request was sent, calls rejected by the open circuit breaker are not
+         */
+        public boolean isSent() {
+            return attempts > 0;
+        }
+
+        /**
+         * Server errors and connection problems can be retried, client errors are final
+         */
+        public boolean isRetryable() {
+            return statusCode == 0 || statusCode >= 500;
+        }
+    }
+
+    private static class Settings {
+        private final long connectTimeout;
+        private final long readTimeout;
+        private final int maxRetries;
+        private final long initialBackoff;
+        private final long maxBackoff;
+        private final int failureThreshold;
+        private final long openDuration;
+
+        Settings(XMLConfiguration config) {
+            connectTimeout = config.getLong("api/@connectTimeout", 10);
+            readTimeout = config.getLong("api/@readTimeout", 60);
+            maxRetries = Math.max(0, config.getInt("api/@maxRetries", 3));
+            initialBackoff = Math.max(1, config.getLong("api/@initialBackoff", 1000));
+            maxBackoff = Math.max(initialBackoff, config.getLong("api/@maxBackoff", 30000));
+            failureThreshold = Math.max(1, config.getInt("api/@failureThreshold", 5));
+            openDuration = config.getLong("api/@openDuration", 60);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Settings)) {
+                return false;
+            }
+            Settings other = (Settings) obj;
+            return connectTimeout == other.connectTimeout && readTimeout == other.readTimeout && maxRetries == other.maxRetries
+                    && initialBackoff == other.initialBackoff && maxBackoff == other.maxBackoff && failureThreshold == other.failureThreshold
+                    && openDuration == other.openDuration;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(connectTimeout, readTimeout, maxRetries, initialBackoff, maxBackoff, failureThreshold, openDuration);
+        }
+    }
+}
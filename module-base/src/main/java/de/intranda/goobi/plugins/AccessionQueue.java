@@ -0,0 +1,399 @@
+package de.intranda.goobi.plugins;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.Properties;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.configuration.XMLConfiguration;
+import org.apache.commons.configuration.tree.xpath.XPathExpressionEngine;
+import org.apache.commons.lang3.StringUtils;
+import org.goobi.production.cli.helper.StringPair;
+import org.goobi.production.enums.LogType;
+
+import de.intranda.goobi.plugins.AccessionApiClient.AccessionResponse;
+import de.sub.goobi.config.ConfigPlugins;
+import de.sub.goobi.config.ConfigurationHelper;
+import de.sub.goobi.helper.Helper;
+import lombok.extern.log4j.Log4j;
+
+/**
+ * Durable queue for accession requests.
+ *
+ * Each request is stored as a file in the pending folder of the queue before the export finishes. A background dispatcher sends the requests with
+ * a limited number of parallel calls and a limited request rate. A request file is only moved into the done folder after the API accepted it, so
+ * requests survive a restart of Goobi and are delivered at least once. Server and connection errors are retried until the API answers, only a
+ * request rejected by the API is moved into the failed folder. The outcome is written into the journal of the process.
+ *
+ * The queue is the only retry layer for its requests: they are sent without the retries of the API client, because the POST request is not
+ * idempotent and every retry of the client would be repeated for each attempt of the queue.
+ */
+@Log4j
+public class AccessionQueue {
+
+    private static final String title = "intranda_export_stanford";
+    private static final String pendingFolderName = "pending";
+    private static final String doneFolderName = "done";
+    private static final String failedFolderName = "failed";
+
+    private static AccessionQueue instance;
+    // shared by all instances, so that a queue replaced after a configuration change does not send the requests of the running deliveries again
+    private static final Set<Path> inProgress = ConcurrentHashMap.newKeySet();
+    private static final AtomicLong nextSlot = new AtomicLong();
+
+    private final Settings settings;
+    private final Path pendingFolder;
+    private final Path doneFolder;
+    private final Path failedFolder;
+
+    private final ScheduledExecutorService dispatcher;
+    private final ExecutorService workers;
+
+    private AccessionQueue(Settings settings) throws IOException {
+        this.settings = settings;
+        pendingFolder = settings.queueFolder.resolve(pendingFolderName);
+        doneFolder = settings.queueFolder.resolve(doneFolderName);
+        failedFolder = settings.queueFolder.resolve(failedFolderName);
+        Files.createDirectories(pendingFolder);
+        Files.createDirectories(doneFolder);
+        Files.createDirectories(failedFolder);
+
+        AtomicInteger threadCounter = new AtomicInteger();
+        workers = Executors.newFixedThreadPool(settings.concurrency, r -> {
+            Thread thread = new Thread(r, "stanford-accession-worker-" + threadCounter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        dispatcher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "stanford-accession-dispatcher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        dispatcher.scheduleWithFixedDelay(this::dispatch, 0, settings.pollInterval, TimeUnit.SECONDS);
+        log.info("Accession queue started in " + settings.queueFolder);
+    }
+
+    /**
+     * Get the queue, the dispatcher is started on the first call. If the settings in the configuration file were changed, a new queue is started
+     * and the old one stops after its running deliveries.
+     *
+     * @param config
+     * @return
+     * @throws IOException if the queue folder cannot be created
+     */
+    public static synchronized AccessionQueue getInstance(XMLConfiguration config) throws IOException {
+        Settings settings = new Settings(config);
+        if (instance == null || !instance.settings.equals(settings)) {
+            AccessionQueue queue = new AccessionQueue(settings);
+            if (instance != null) {
+                instance.shutdown();
+            }
+            instance = queue;
+        }
+        return instance;
+    }
+
+    /**
+     * Stop polling the queue folder, running deliveries are finished
+     */
+    private void shutdown() {
+        dispatcher.shutdown();
+        workers.shutdown();
+    }
+
+    /**
+     * Start the dispatcher if the queue is enabled, so that requests left over from a previous run are delivered
+     *
+     * @param config
+     */
+    public static void startIfEnabled(XMLConfiguration config) {
+        if (config.getBoolean("accessionQueue/@enabled", false)) {
+            try {
+                getInstance(config);
+            } catch (IOException e) {
+                log.error("Accession queue cannot be started", e);
+            }
+        }
+    }
+
+    /**
+     * Store a new accession request in the queue
+     *
+     * @param processId
+     * @param objectId
+     * @param apiBaseUrl
+     * @param endpoint
+     * @param queryParameter
+     * @throws IOException
+     */
+    public void enqueue(Integer processId, String objectId, String apiBaseUrl, String endpoint, List<StringPair> queryParameter) throws IOException {
+        Properties request = new Properties();
+        request.setProperty("processId", String.valueOf(processId));
+        request.setProperty("objectId", objectId);
+        request.setProperty("apiBaseUrl", apiBaseUrl);
+        request.setProperty("endpoint", endpoint);
+        for (int i = 0; i < queryParameter.size(); i++) {
+            request.setProperty("queryParameter." + i + ".name", queryParameter.get(i).getOne());
+            request.setProperty("queryParameter." + i + ".value", queryParameter.get(i).getTwo());
+        }
+        request.setProperty("created", String.valueOf(System.currentTimeMillis()));
+        request.setProperty("attempts", "0");
+        request.setProperty("nextAttempt", "0");
+
+        // the time keeps the order of the requests, the random part keeps requests of the same millisecond apart
+        String fileName = System.currentTimeMillis() + "_" + objectId.replaceAll("[^\\w.-]", "_") + "_" + UUID.randomUUID() + ".properties";
+        writeRequest(request, pendingFolder.resolve(fileName));
+        log.info("Accession request for " + objectId + " was queued as " + fileName);
+    }
+
+    private void dispatch() {
+        try {
+            List<Path> files = new ArrayList<>();
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(pendingFolder, "*.properties")) {
+                for (Path file : stream) {
+                    files.add(file);
+                }
+            }
+            Collections.sort(files);
+            for (Path file : files) {
+                if (inProgress.size() >= settings.concurrency) {
+                    return;
+                }
+                if (inProgress.contains(file)) {
+                    continue;
+                }
+                Properties request = readRequest(file);
+                if (Long.parseLong(request.getProperty("nextAttempt", "0")) > System.currentTimeMillis()) {
+                    continue;
+                }
+                inProgress.add(file);
+                workers.submit(() -> {
+                    try {
+                        deliver(file, request);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } catch (Exception e) {
+                        log.error("Error while delivering accession request " + file, e);
+                    } finally {
+                        inProgress.remove(file);
+                    }
+                });
+            }
+        } catch (Exception e) {
+            log.error("Error while reading the accession queue", e);
+        }
+    }
+
+    private void deliver(Path file, Properties request) throws IOException, InterruptedException {
+        waitForSlot();
+
+        // read the configuration again to always use the current access token
+        XMLConfiguration config = ConfigPlugins.getPluginConfig(title);
+        config.setExpressionEngine(new XPathExpressionEngine());
+        String accessToken = config.getString("accessToken");
+
+        List<StringPair> queryParameter = new ArrayList<>();
+        for (int i = 0; request.containsKey("queryParameter." + i + ".name"); i++) {
+            queryParameter.add(new StringPair(request.getProperty("queryParameter." + i + ".name"),
+                    request.getProperty("queryParameter." + i + ".value")));
+        }
+        String objectId = request.getProperty("objectId");
+        // a single attempt, failed requests are retried by the queue
+        AccessionResponse response = AccessionApiClient.getInstance(config)
+                .post(request.getProperty("apiBaseUrl"), objectId, request.getProperty("endpoint"), queryParameter, accessToken, 0);
+
+        int previousAttempts = Integer.parseInt(request.getProperty("attempts", "0"));
+        Outcome outcome = recordResponse(request, response, System.currentTimeMillis(), settings.retryDelay, settings.maxRetryDelay);
+        int attempts = Integer.parseInt(request.getProperty("attempts", "0"));
+        Integer processId = parseProcessId(request.getProperty("processId"));
+
+        switch (outcome) {
+            case DELIVERED:
+                moveRequest(file, request, doneFolder);
+                log.info("Queued accession request for " + objectId + " was successful after " + attempts + " attempts");
+                addJournalEntry(processId, LogType.INFO,
+                        "API call was successful: " + response.getMessage() + " (" + response.getStatusCode() + ")");
+                break;
+            case FAILED:
+                moveRequest(file, request, failedFolder);
+                log.error("Queued accession request for " + objectId + " was rejected after " + attempts + " attempts: " + response.getMessage());
+                addJournalEntry(processId, LogType.ERROR, "Something went wrong: " + response.getMessage() + " (" + response.getStatusCode()
+                        + "), accession request was not delivered");
+                break;
+            default:
+                writeRequest(request, file);
+                log.warn("Queued accession request for " + objectId + " failed, retrying later: " + response.getMessage());
+                if (previousAttempts < settings.maxAttempts && attempts >= settings.maxAttempts) {
+                    // reported once, the request stays in the queue until the API accepts or rejects it
+                    addJournalEntry(processId, LogType.ERROR, "Accession request was not delivered after " + attempts + " attempts: "
+                            + response.getMessage() + " (" + response.getStatusCode() + "), the request is retried until the API is available");
+                }
+        }
+    }
+
+    /**
+     * Write the response into the request and decide how to continue. Calls rejected by the open circuit breaker were not sent and are not counted
+     * as attempt. Server and connection errors are retried with a delay that doubles up to maxRetryDelay, only client errors fail the request.
+     *
+     * @param request
+     * @param response
+     * @param now current time in ms
+     * @param retryDelay delay after the first failed attempt in ms
+     * @param maxRetryDelay upper limit of the delay in ms
+     * @return
+     */
+    static Outcome recordResponse(Properties request, AccessionResponse response, long now, long retryDelay, long maxRetryDelay) {
+        int attempts = Integer.parseInt(request.getProperty("attempts", "0"));
+        if (response.isSent()) {
+            attempts++;
+            request.setProperty("attempts", String.valueOf(attempts));
+            request.setProperty("lastAttempt", String.valueOf(now));
+        }
+        request.setProperty("lastResult", response.getStatusCode() + " " + response.getMessage());
+        if (response.isSuccessful()) {
+            return Outcome.DELIVERED;
+        }
+        if (!response.isRetryable()) {
+            return Outcome.FAILED;
+        }
+        request.setProperty("nextAttempt", String.valueOf(now + getRetryDelay(attempts, retryDelay, maxRetryDelay)));
+        return Outcome.RETRY;
+    }
+
+    static long getRetryDelay(int attempts, long retryDelay, long maxRetryDelay) {
+        int doublings = Math.min(Math.max(attempts - 1, 0), 20);
+        return Math.min(Math.max(retryDelay, maxRetryDelay), retryDelay << doublings);
+    }
+
+    /**
+     * Limit the number of requests per minute by assigning a time slot to each request
+     */
+    private void waitForSlot() throws InterruptedException {
+        if (settings.minimumInterval <= 0) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        long slot = nextSlot.getAndUpdate(previous -> Math.max(previous, now) + settings.minimumInterval);
+        long wait = Math.max(slot, now) - now;
+        if (wait > 0) {
+            Thread.sleep(wait);
+        }
+    }
+
+    private static Integer parseProcessId(String value) {
+        try {
+            return Integer.valueOf(value);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static void addJournalEntry(Integer processId, LogType type, String message) {
+        if (processId != null) {
+            Helper.addMessageToProcessJournal(processId, type, message);
+        }
+    }
+
+    private static Properties readRequest(Path file) throws IOException {
+        Properties request = new Properties();
+        try (InputStream in = Files.newInputStream(file)) {
+            request.load(in);
+        }
+        return request;
+    }
+
+    /**
+     * Write the request into a temporary file, flush it to the storage and move it into place
+     */
+    private static void writeRequest(Properties request, Path file) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        request.store(out, null);
+        Path tempFile = file.resolveSibling(file.getFileName().toString() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tempFile, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = ByteBuffer.wrap(out.toByteArray());
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        }
+        Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void moveRequest(Path file, Properties request, Path folder) throws IOException {
+        writeRequest(request, file);
+        Files.move(file, folder.resolve(file.getFileName()), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * How a delivery ended
+     */
+    enum Outcome {
+        DELIVERED,
+        FAILED,
+        RETRY
+    }
+
+    private static class Settings {
+        private final Path queueFolder;
+        private final int concurrency;
+        private final int maxAttempts;
+        private final long retryDelay;
+        private final long maxRetryDelay;
+        private final long minimumInterval;
+        private final long pollInterval;
+
+        /**
+         * Read the attributes of the &lt;accessionQueue&gt; element
+         */
+        Settings(XMLConfiguration config) {
+            String folder = config.getString("accessionQueue/@folder", "");
+            queueFolder = StringUtils.isBlank(folder) ? Paths.get(ConfigurationHelper.getInstance().getTemporaryFolder(), "stanford_accession_queue")
+                    : Paths.get(folder);
+            concurrency = Math.max(1, config.getInt("accessionQueue/@concurrency", 2));
+            maxAttempts = Math.max(1, config.getInt("accessionQueue/@maxAttempts", 20));
+            retryDelay = config.getLong("accessionQueue/@retryDelay", 300) * 1000;
+            maxRetryDelay = config.getLong("accessionQueue/@maxRetryDelay", 3600) * 1000;
+            int requestsPerMinute = config.getInt("accessionQueue/@requestsPerMinute", 30);
+            minimumInterval = requestsPerMinute > 0 ? 60000 / requestsPerMinute : 0;
+            pollInterval = Math.max(1, config.getLong("accessionQueue/@pollInterval", 10));
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Settings)) {
+                return false;
+            }
+            Settings other = (Settings) obj;
+            return queueFolder.equals(other.queueFolder) && concurrency == other.concurrency && maxAttempts == other.maxAttempts
+                    && retryDelay == other.retryDelay && maxRetryDelay == other.maxRetryDelay && minimumInterval == other.minimumInterval
+                    && pollInterval == other.pollInterval;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(queueFolder, concurrency, maxAttempts, retryDelay, maxRetryDelay, minimumInterval, pollInterval);
+        }
+    }
+}
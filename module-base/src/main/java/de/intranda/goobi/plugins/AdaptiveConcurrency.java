@@ -0,0 +1,229 @@
+package de.intranda.goobi.plugins;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.commons.configuration.XMLConfiguration;
+
+import lombok.extern.log4j.Log4j;
+
+/**
+ * Limits the number of files that are copied at the same time and adapts the limit to the write latency of the storage.
+ *
+ * For each copied file the time per MB is measured, the time spent waiting for the bandwidth limiter is not included. The lowest average latency
+ * seen so far is used as baseline. If the average rises above the baseline times the configured tolerance, the storage is overloaded and the limit
+ * is reduced by a quarter. If the latency stays close to the baseline while all permits are in use, the limit is raised by one. The limit is
+ * adjusted at most once per round of files, so each change can take effect before the next one.
+ *
+ * The adaptive limit is shared by all exports as long as the plugin is loaded, so it reflects the load of all exports on the storage together and
+ * the baseline is not taken from a single export that started on a congested storage. Each export gets its own statistics from a window.
+ */
+@Log4j
+public class AdaptiveConcurrency {
+
+    // weight of a new sample in the moving average
+    private static final double smoothing = 0.2;
+    // the baseline is slowly raised again, so a single fast file does not keep the limit down forever
+    private static final double baselineDrift = 1.01;
+    // latency below baseline times this factor counts as idle storage
+    private static final double idleFactor = 1.2;
+
+    private static AdaptiveConcurrency instance;
+
+    private final boolean adaptive;
+    private final int minLimit;
+    private final int maxLimit;
+    private final double tolerance;
+
+    private int limit;
+    private int inFlight = 0;
+    private double average = -1;
+    private double baseline = -1;
+    private int samples = 0;
+    private final Set<Window> windows = new HashSet<>();
+
+    /**
+     *
+     * @param adaptive adapt the limit to the latency, otherwise the maximum is used all the time
+     * @param minLimit lowest number of files to copy at the same time
+     * @param maxLimit highest number of files to copy at the same time, this is also the initial limit
+     * @param tolerance factor the latency may rise above the baseline before the limit is reduced
+     */
+    public AdaptiveConcurrency(boolean adaptive, int minLimit, int maxLimit, double tolerance) {
+        this.adaptive = adaptive;
+        this.maxLimit = Math.max(maxLimit, 1);
+        this.minLimit = Math.min(Math.max(minLimit, 1), this.maxLimit);
+        this.tolerance = Math.max(tolerance, 1.1);
+        limit = this.maxLimit;
+    }
+
+    /**
+     * Use a fixed limit
+     *
+     * @param threads
+     * @return
+     */
+    public static AdaptiveConcurrency fixed(int threads) {
+        return new AdaptiveConcurrency(false, threads, threads, 2);
+    }
+
+    /**
+     * Get the limit for an export from the &lt;throttle&gt; element of the plugin configuration. Without adaptive limit, each export gets a fixed
+     * limit of its number of copy threads. With adaptive limit, all exports share the same instance, its maximum is maxThreads for all exports
+     * together. A new shared instance is created only if the settings in the configuration file were changed.
+     *
+     * @param config
+     * @return
+     */
+    public static AdaptiveConcurrency getInstance(XMLConfiguration config) {
+        int threads = config.getInt("copy/@threads", 4);
+        if (!config.getBoolean("throttle/@adaptive", false)) {
+            return fixed(threads);
+        }
+        AdaptiveConcurrency settings = new AdaptiveConcurrency(true, config.getInt("throttle/@minThreads", 1),
+                config.getInt("throttle/@maxThreads", threads), config.getDouble("throttle/@tolerance", 2));
+        synchronized (AdaptiveConcurrency.class) {
+            if (instance == null || !instance.hasSameSettings(settings)) {
+                instance = settings;
+            }
+            return instance;
+        }
+    }
+
+    private boolean hasSameSettings(AdaptiveConcurrency other) {
+        return adaptive == other.adaptive && minLimit == other.minLimit && maxLimit == other.maxLimit && tolerance == other.tolerance;
+    }
+
+    /**
+     * Start collecting the changes of the limit for a single export
+     *
+     * @return the window, it must be closed at the end of the export
+     */
+    public synchronized Window openWindow() {
+        Window window = new Window(limit);
+        windows.add(window);
+        return window;
+    }
+
+    /**
+     * Wait until the file can be copied
+     *
+     * @throws InterruptedException
+     */
+    public synchronized void acquire() throws InterruptedException {
+        while (inFlight >= limit) {
+            wait();
+        }
+        inFlight++;
+    }
+
+    public synchronized void release() {
+        inFlight--;
+        notifyAll();
+    }
+
+    /**
+     * Add the latency of a copied file and adjust the limit
+     *
+     * @param bytes size of the file
+     * @param nanos time for writing the file without waiting for the bandwidth limiter
+     */
+    public synchronized void record(long bytes, long nanos) {
+        if (!adaptive || maxLimit == minLimit) {
+            return;
+        }
+        // small files are dominated by the time to create them, they are counted like files of 1 MB
+        double latency = nanos / 1_000_000d / Math.max(bytes / (1024d * 1024d), 1);
+        average = average < 0 ? latency : average * (1 - smoothing) + latency * smoothing;
+        baseline = baseline < 0 ? average : Math.min(average, baseline * baselineDrift);
+        if (++samples < limit) {
+            return;
+        }
+        samples = 0;
+        if (average > baseline * tolerance && limit > minLimit) {
+            limit = Math.max(minLimit, limit * 3 / 4);
+            for (Window window : windows) {
+                window.decreased(limit);
+            }
+            log.debug("Storage latency rose to " + Math.round(average) + " ms/MB, copying " + limit + " files at the same time");
+        } else if (average <= baseline * idleFactor && inFlight + 1 >= limit && limit < maxLimit) {
+            limit++;
+            for (Window window : windows) {
+                window.increased(limit);
+            }
+            notifyAll();
+        }
+    }
+
+    public synchronized int getLimit() {
+        return limit;
+    }
+
+    /**
+     * Changes of the limit during a single export
+     */
+    public class Window implements AutoCloseable {
+        private int lowestLimit;
+        private int highestLimit;
+        private int decreases = 0;
+        private int increases = 0;
+
+        private Window(int limit) {
+            lowestLimit = limit;
+            highestLimit = limit;
+        }
+
+        private void decreased(int newLimit) {
+            decreases++;
+            lowestLimit = Math.min(lowestLimit, newLimit);
+        }
+
+        private void increased(int newLimit) {
+            increases++;
+            highestLimit = Math.max(highestLimit, newLimit);
+        }
+
+        /**
+         * Lowest limit while the window was open
+         */
+        public int getLowestLimit() {
+            synchronized (AdaptiveConcurrency.this) {
+                return lowestLimit;
+            }
+        }
+
+        /**
+         * Highest limit while the window was open
+         */
+        public int getHighestLimit() {
+            synchronized (AdaptiveConcurrency.this) {
+                return highestLimit;
+            }
+        }
+
+        /**
+         * Number of times the limit was reduced while the window was open
+         */
+        public int getDecreases() {
+            synchronized (AdaptiveConcurrency.this) {
+                return decreases;
+            }
+        }
+
+        /**
+         * Number of times the limit was raised while the window was open
+         */
+        public int getIncreases() {
+            synchronized (AdaptiveConcurrency.this) {
+                return increases;
+            }
+        }
+
+        @Override
+        public void close() {
+            synchronized (AdaptiveConcurrency.this) {
+                windows.remove(this);
+            }
+        }
+    }
+}
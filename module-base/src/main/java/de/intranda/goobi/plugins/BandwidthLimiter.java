@@ -0,0 +1,239 @@
+package de.intranda.goobi.plugins;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.time.LocalTime;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.configuration.HierarchicalConfiguration;
+import org.apache.commons.configuration.XMLConfiguration;
+
+import lombok.extern.log4j.Log4j;
+
+/**
+ * Token bucket that limits the bandwidth of all exports together, shared as long as the plugin is loaded.
+ *
+ * Every read or write of the copy, verify and merge phases takes its number of bytes from the bucket. The bucket is refilled with the configured
+ * rate and holds at most the amount of one second, so short pauses don't lead to bursts. If the bucket is empty, the caller reserves the bytes
+ * and waits until they are refilled, so all exports get their share in the order of their requests. The rate can be changed for times of the
+ * day, e.g. to leave bandwidth for the image viewer during office hours.
+ */
+@Log4j
+public class BandwidthLimiter {
+
+    private static final BandwidthLimiter unlimited = new BandwidthLimiter(new Settings(0, new ArrayList<>()));
+    private static BandwidthLimiter instance;
+
+    private final Settings settings;
+    private double tokens = 0;
+    private long lastRefill = System.nanoTime();
+
+    private BandwidthLimiter(Settings settings) {
+        this.settings = settings;
+    }
+
+    /**
+     * Get the shared limiter. A new limiter is created only if the settings in the configuration file were changed.
+     *
+     * @param config
+     * @return
+     */
+    public static synchronized BandwidthLimiter getInstance(XMLConfiguration config) {
+        Settings settings = new Settings(config);
+        if (instance == null || !instance.settings.equals(settings)) {
+            instance = new BandwidthLimiter(settings);
+        }
+        return instance;
+    }
+
+    /**
+     * Get a limiter that does not restrict anything
+     */
+    public static BandwidthLimiter unlimited() {
+        return unlimited;
+    }
+
+    /**
+     * Check if a limit is configured for any time of the day
+     */
+    public boolean isEnabled() {
+        if (settings.maxBytesPerSecond > 0) {
+            return true;
+        }
+        for (Profile profile : settings.profiles) {
+            if (profile.maxBytesPerSecond > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Get the limit for the current time of the day
+     *
+     * @return bytes per second or 0, if the bandwidth is not limited
+     */
+    public long getCurrentLimit() {
+        LocalTime now = LocalTime.now();
+        for (Profile profile : settings.profiles) {
+            if (profile.contains(now)) {
+                return profile.maxBytesPerSecond;
+            }
+        }
+        return settings.maxBytesPerSecond;
+    }
+
+    /**
+     * Take the given number of bytes from the bucket and wait until they are available
+     *
+     * @param bytes
+     * @return the time waited in ns
+     * @throws InterruptedException
+     */
+    public long acquire(long bytes) throws InterruptedException {
+        long rate = getCurrentLimit();
+        if (rate <= 0 || bytes <= 0) {
+            return 0;
+        }
+        long waitNanos;
+        synchronized (this) {
+            long now = System.nanoTime();
+            tokens = Math.min(rate, tokens + (now - lastRefill) * (rate / 1_000_000_000d));
+            lastRefill = now;
+            tokens -= bytes;
+            waitNanos = tokens >= 0 ? 0 : (long) (-tokens / rate * 1_000_000_000d);
+        }
+        if (waitNanos > 0) {
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        }
+        return waitNanos;
+    }
+
+    /**
+     * Output stream that takes all written bytes from the bucket before they are passed on. It should be used below a buffer, so that the bucket
+     * is not accessed for every single byte. Writes of an interrupted thread fail, so that cancelled tasks stop writing.
+     */
+    public static class ThrottledOutputStream extends FilterOutputStream {
+
+        private final BandwidthLimiter limiter;
+        private long waitNanos = 0;
+
+        public ThrottledOutputStream(OutputStream out, BandwidthLimiter limiter) {
+            super(out);
+            this.limiter = limiter;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            throttle(1);
+            out.write(b);
+        }
+
+        @Override
+        public void write(byte[] data, int offset, int length) throws IOException {
+            throttle(length);
+            out.write(data, offset, length);
+        }
+
+        private void throttle(int bytes) throws IOException {
+            if (Thread.currentThread().isInterrupted()) {
+                throw new InterruptedIOException("Write was interrupted");
+            }
+            try {
+                waitNanos += limiter.acquire(bytes);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Write was interrupted");
+            }
+        }
+
+        /**
+         * Time spent waiting for the bucket in ns
+         */
+        public long getWaitNanos() {
+            return waitNanos;
+        }
+    }
+
+    /**
+     * Different limit for a time of the day. If the end is before the start, the time span includes midnight.
+     */
+    private static class Profile {
+        private final LocalTime from;
+        private final LocalTime to;
+        private final long maxBytesPerSecond;
+
+        Profile(LocalTime from, LocalTime to, long maxBytesPerSecond) {
+            this.from = from;
+            this.to = to;
+            this.maxBytesPerSecond = maxBytesPerSecond;
+        }
+
+        boolean contains(LocalTime time) {
+            if (from.isBefore(to)) {
+                return !time.isBefore(from) && time.isBefore(to);
+            }
+            return !time.isBefore(from) || time.isBefore(to);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Profile)) {
+                return false;
+            }
+            Profile other = (Profile) obj;
+            return from.equals(other.from) && to.equals(other.to) && maxBytesPerSecond == other.maxBytesPerSecond;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(from, to, maxBytesPerSecond);
+        }
+    }
+
+    private static class Settings {
+        private final long maxBytesPerSecond;
+        private final List<Profile> profiles;
+
+        Settings(long maxBytesPerSecond, List<Profile> profiles) {
+            this.maxBytesPerSecond = maxBytesPerSecond;
+            this.profiles = profiles;
+        }
+
+        /**
+         * Read the maxBandwidth attribute of the &lt;throttle&gt; element and its &lt;profile&gt; elements, the values are given in MB/s
+         */
+        Settings(XMLConfiguration config) {
+            maxBytesPerSecond = Math.max(0, config.getLong("throttle/@maxBandwidth", 0)) * 1024 * 1024;
+            profiles = new ArrayList<>();
+            for (HierarchicalConfiguration profile : config.configurationsAt("throttle/profile")) {
+                try {
+                    profiles.add(new Profile(LocalTime.parse(profile.getString("@from", "00:00")), LocalTime.parse(profile.getString("@to", "00:00")),
+                            Math.max(0, profile.getLong("@maxBandwidth", 0)) * 1024 * 1024));
+                } catch (DateTimeParseException e) {
+                    log.warn("Throttle profile with invalid time is ignored: " + e.getMessage());
+                }
+            }
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Settings)) {
+                return false;
+            }
+            Settings other = (Settings) obj;
+            return maxBytesPerSecond == other.maxBytesPerSecond && profiles.equals(other.profiles);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(maxBytesPerSecond, profiles);
+        }
+    }
+}
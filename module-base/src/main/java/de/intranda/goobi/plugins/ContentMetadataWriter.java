@@ -0,0 +1,315 @@
+package de.intranda.goobi.plugins;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import de.intranda.goobi.plugins.FileCopyEngine.CopiedFile;
+import de.intranda.goobi.plugins.PageIndex.IndexedFile;
+import de.intranda.goobi.plugins.PageIndex.Page;
+import lombok.extern.log4j.Log4j;
+
+/**
+ * Streaming writer for the content metadata file.
+ *
+ * The elements are written directly into the output in a single pass, no document is kept in memory. The output uses the same layout as the
+ * pretty format of the JDOM XMLOutputter (two spaces indentation, CRLF line breaks, empty elements as &lt;name /&gt;), so the generated file is
+ * identical to the one that was created with JDOM before.
+ *
+ * If information about the exported files is given, each file element gets the size and the digests of the file as checksum elements.
+ */
+@Log4j
+public class ContentMetadataWriter implements Closeable {
+
+    private static final String lineSeparator = "\r\n";
+    private static final String indent = "  ";
+
+    private static final String contentString = "content";
+    private static final String typeString = "type";
+    private static final String nameString = "name";
+    private static final String fileString = "file";
+    private static final String labelString = "label";
+    private static final String resourceString = "resource";
+    private static final String sizeString = "size";
+    private static final String checksumString = "checksum";
+
+    private final Writer out;
+    private final Deque<String> openElements = new ArrayDeque<>();
+    private boolean startTagOpen = false;
+    private boolean textWritten = false;
+
+    public ContentMetadataWriter(Writer out) throws IOException {
+        this.out = out;
+        out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
+        out.write(lineSeparator);
+    }
+
+    /**
+     * Write the content metadata for the pages of the index into a temporary file and move it to the given location afterwards
+     *
+     * @param metadataFile
+     * @param contentType
+     * @param pageIndex images, alto and pdf files of the process
+     * @param objectId
+     * @param files size and digests of the exported files by file name, can be null
+     * @throws IOException
+     */
+    public static void writeMetadataFile(Path metadataFile, String contentType, PageIndex pageIndex, String objectId, Map<String, CopiedFile> files)
+            throws IOException {
+        Path tempFile = metadataFile.resolveSibling(metadataFile.getFileName().toString() + ".tmp");
+        try {
+            try (ContentMetadataWriter writer =
+                    new ContentMetadataWriter(new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(tempFile), StandardCharsets.UTF_8)))) {
+                writer.writeContent(contentType, pageIndex, objectId, files);
+            }
+            Files.move(tempFile, metadataFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tempFile);
+        }
+    }
+
+    /**
+     * Make an already written file available at a second location. A hard link is used if possible, otherwise the file gets copied. In both cases
+     * the file appears atomically at the new location.
+     *
+     * @param file
+     * @param additionalLocation
+     * @throws IOException
+     */
+    public static void publishCopy(Path file, Path additionalLocation) throws IOException {
+        Path tempFile = additionalLocation.resolveSibling(additionalLocation.getFileName().toString() + ".tmp");
+        try {
+            Files.deleteIfExists(tempFile);
+            try {
+                Files.createLink(tempFile, file);
+            } catch (FileSystemException | UnsupportedOperationException e) {
+                log.debug("Cannot create hard link for " + additionalLocation + ", copying the file instead");
+                Files.copy(file, tempFile, StandardCopyOption.REPLACE_EXISTING);
+            }
+            Files.move(tempFile, additionalLocation, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tempFile);
+        }
+    }
+
+    /**
+     * Write the complete content element for the given file names, the files are joined into pages by their names
+     *
+     * @param contentType
+     * @param imageFileNames
+     * @param altoFileNames
+     * @param pdfFileNames
+     * @param objectId
+     * @throws IOException
+     */
+    public void writeContent(String contentType, List<String> imageFileNames, List<String> altoFileNames, List<String> pdfFileNames,
+            String objectId) throws IOException {
+        writeContent(contentType, PageIndex.fromFileNames(imageFileNames, altoFileNames, pdfFileNames), objectId, null);
+    }
+
+    /**
+     * Write the complete content element. If there are alto files, each page gets a resource with a label, containing the image, the pdf and the
+     * alto file of the page as far as they exist. Otherwise only the images are listed, like for volumes without OCR, even if there are single
+     * page pdf files.
+     *
+     * @param contentType
+     * @param pageIndex images, alto and pdf files of the process
+     * @param objectId
+     * @param files size and digests of the exported files by file name, can be null
+     * @throws IOException
+     */
+    public void writeContent(String contentType, PageIndex pageIndex, String objectId, Map<String, CopiedFile> files) throws IOException {
+        startElement(contentString);
+        attribute(typeString, contentType);
+
+        if (pageIndex.hasOcrFiles()) {
+            int pageNumber = 0;
+            for (Page page : pageIndex.getPages()) {
+                startElement(resourceString);
+                textElement(labelString, "Page " + (++pageNumber));
+                // create image entry
+                if (page.getImage() != null) {
+                    startElement(fileString);
+                    attribute(nameString, page.getImage().getName());
+                    fileInformation(files, page.getImage().getName());
+                    endElement();
+                }
+
+                // create pdf entry
+                if (page.getPdf() != null) {
+                    startElement(fileString);
+                    attribute(nameString, page.getPdf().getName());
+                    fileInformation(files, page.getPdf().getName());
+                    endElement();
+                }
+
+                // create alto entry
+                if (page.getAlto() != null) {
+                    startElement(fileString);
+                    attribute(nameString, page.getAlto().getName());
+                    attribute("role", "transcription");
+                    attribute("publish", "yes");
+                    attribute("preserve", "yes");
+                    attribute("shelve", "yes");
+                    fileInformation(files, page.getAlto().getName());
+                    endElement();
+                }
+                endElement();
+            }
+        } else if (pageIndex.getImageFiles() != null) {
+            for (IndexedFile image : pageIndex.getImageFiles()) {
+                startElement(resourceString);
+                startElement(fileString);
+                attribute(nameString, image.getName());
+                fileInformation(files, image.getName());
+                endElement();
+                endElement();
+            }
+        }
+
+        // add one pdf entry for the all-pages-pdf
+        if (pageIndex.getPdfFiles() != null && !pageIndex.getPdfFiles().isEmpty()) {
+            startElement(resourceString);
+            startElement(fileString);
+            attribute(nameString, objectId + ".pdf");
+            fileInformation(files, objectId + ".pdf");
+            endElement();
+            endElement();
+        }
+        endElement();
+    }
+
+    /**
+     * Add the size attribute and the checksum elements to the current file element, if the file is known
+     */
+    private void fileInformation(Map<String, CopiedFile> files, String fileName) throws IOException {
+        CopiedFile file = files == null ? null : files.get(fileName);
+        if (file == null) {
+            return;
+        }
+        attribute(sizeString, String.valueOf(file.getSize()));
+        for (Entry<String, String> digest : file.getDigests().entrySet()) {
+            startElement(checksumString);
+            attribute(typeString, digest.getKey());
+            text(digest.getValue());
+            endElement();
+        }
+    }
+
+    private void startElement(String name) throws IOException {
+        closeStartTag();
+        writeIndent();
+        out.write('<');
+        out.write(name);
+        openElements.push(name);
+        startTagOpen = true;
+    }
+
+    private void attribute(String name, String value) throws IOException {
+        out.write(' ');
+        out.write(name);
+        out.write("=\"");
+        escape(value, true);
+        out.write('"');
+    }
+
+    private void textElement(String name, String text) throws IOException {
+        startElement(name);
+        text(text.trim());
+        endElement();
+    }
+
+    /**
+     * Write the text content of the current element, the element gets closed on the same line
+     */
+    private void text(String text) throws IOException {
+        out.write('>');
+        escape(text, false);
+        startTagOpen = false;
+        textWritten = true;
+    }
+
+    private void endElement() throws IOException {
+        String name = openElements.pop();
+        if (startTagOpen) {
+            out.write(" />");
+            startTagOpen = false;
+        } else if (textWritten) {
+            out.write("</");
+            out.write(name);
+            out.write('>');
+            textWritten = false;
+        } else {
+            writeIndent();
+            out.write("</");
+            out.write(name);
+            out.write('>');
+        }
+        out.write(lineSeparator);
+    }
+
+    private void closeStartTag() throws IOException {
+        if (startTagOpen) {
+            out.write('>');
+            out.write(lineSeparator);
+            startTagOpen = false;
+        }
+    }
+
+    private void writeIndent() throws IOException {
+        for (int i = 0; i < openElements.size(); i++) {
+            out.write(indent);
+        }
+    }
+
+    /**
+     * Escape the value the same way as the JDOM XMLOutputter does
+     */
+    private void escape(String value, boolean attribute) throws IOException {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '&':
+                    out.write("&amp;");
+                    break;
+                case '<':
+                    out.write("&lt;");
+                    break;
+                case '>':
+                    out.write("&gt;");
+                    break;
+                case '\r':
+                    out.write("&#xD;");
+                    break;
+                case '"':
+                    out.write(attribute ? "&quot;" : "\"");
+                    break;
+                case '\t':
+                    out.write(attribute ? "&#x9;" : "\t");
+                    break;
+                case '\n':
+                    out.write(attribute ? "&#xA;" : "\n");
+                    break;
+                default:
+                    out.write(c);
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        out.close();
+    }
+}
@@ -0,0 +1,81 @@
+package de.intranda.goobi.plugins;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+
+import org.apache.commons.configuration.XMLConfiguration;
+import org.apache.commons.lang3.StringUtils;
+
+import lombok.Getter;
+import lombok.extern.log4j.Log4j;
+
+/**
+ * Digests that can be computed during the export and written into the content metadata. The type is the value used in the type attribute of the
+ * checksum elements.
+ */
+@Log4j
+public enum DigestType {
+
+    MD5("md5", "MD5"),
+    SHA1("sha1", "SHA-1"),
+    SHA256("sha256", "SHA-256");
+
+    @Getter
+    private final String type;
+    private final String algorithm;
+
+    private DigestType(String type, String algorithm) {
+        this.type = type;
+        this.algorithm = algorithm;
+    }
+
+    public MessageDigest createDigest() {
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            // all algorithms are required to be supported by every java platform
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public static String toHex(byte[] digest) {
+        return HexFormat.of().formatHex(digest);
+    }
+
+    /**
+     * Get the digest with the given type name
+     *
+     * @param type
+     * @return the digest or null, if the type is unknown
+     */
+    public static DigestType getByType(String type) {
+        for (DigestType digestType : values()) {
+            if (digestType.type.equalsIgnoreCase(type.trim())) {
+                return digestType;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Read the comma separated list of digests from the algorithms attribute of the &lt;checksums&gt; element
+     *
+     * @param config
+     * @return the configured digests, an empty list if no digests shall be computed
+     */
+    public static List<DigestType> fromConfig(XMLConfiguration config) {
+        List<DigestType> digestTypes = new ArrayList<>();
+        for (String type : StringUtils.split(config.getString("checksums/@algorithms", ""), ", ")) {
+            DigestType digestType = getByType(type);
+            if (digestType == null) {
+                log.warn("Unknown checksum algorithm " + type + " is ignored");
+            } else if (!digestTypes.contains(digestType)) {
+                digestTypes.add(digestType);
+            }
+        }
+        return digestTypes;
+    }
+}
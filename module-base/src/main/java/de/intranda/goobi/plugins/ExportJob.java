@@ -0,0 +1,76 @@
+package de.intranda.goobi.plugins;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.goobi.beans.GoobiProperty;
+import org.goobi.beans.Process;
+
+import de.sub.goobi.helper.exceptions.DAOException;
+import de.sub.goobi.helper.exceptions.SwapException;
+import lombok.Getter;
+
+/**
+ * Everything the export needs to know about a process: its properties and the three source folders. The export itself does not access the
+ * process, so it can also be run for folders that don't belong to a Goobi process, e.g. in load tests.
+ */
+@Getter
+public class ExportJob {
+
+    private final Integer processId;
+    private final String title;
+    private final Path imageFolder;
+    private final Path altoFolder;
+    private final Path pdfFolder;
+    // property names are compared case insensitive
+    private final Map<String, String> properties = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+
+    /**
+     *
+     * @param processId
+     * @param title
+     * @param imageFolder folder with the images to export
+     * @param altoFolder folder with the ALTO files
+     * @param pdfFolder folder with the single page PDFs
+     * @param properties process properties, e.g. objectId and contentType
+     */
+    public ExportJob(Integer processId, String title, Path imageFolder, Path altoFolder, Path pdfFolder, Map<String, String> properties) {
+        this.processId = processId;
+        this.title = title;
+        this.imageFolder = imageFolder;
+        this.altoFolder = altoFolder;
+        this.pdfFolder = pdfFolder;
+        this.properties.putAll(properties);
+    }
+
+    /**
+     * Read the properties and source folders of a Goobi process
+     *
+     * @param process
+     * @return
+     * @throws IOException
+     * @throws SwapException
+     * @throws DAOException
+     */
+    public static ExportJob fromProcess(Process process) throws IOException, SwapException, DAOException {
+        Map<String, String> properties = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        for (GoobiProperty property : process.getEigenschaften()) {
+            properties.put(property.getTitel(), property.getWert());
+        }
+        return new ExportJob(process.getId(), process.getTitel(), Paths.get(process.getImagesTifDirectory(false)),
+                Paths.get(process.getOcrAltoDirectory()), Paths.get(process.getOcrPdfDirectory()), properties);
+    }
+
+    /**
+     * Get the value of a process property
+     *
+     * @param name
+     * @return the value or null, if the process has no such property
+     */
+    public String getProperty(String name) {
+        return properties.get(name);
+    }
+}
@@ -0,0 +1,253 @@
+package de.intranda.goobi.plugins;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.apache.commons.configuration.XMLConfiguration;
+
+import de.intranda.goobi.plugins.FileCopyEngine.CopiedFile;
+import lombok.Getter;
+import lombok.extern.log4j.Log4j;
+
+/**
+ * Checkpoint journal of an export that is not finished yet.
+ *
+ * Every completed step is appended as a single line: each copied and verified file, the merged PDF file, the content metadata file and the
+ * accession request. If an export fails, the journal stays in the state folder and the next export of the object continues with the first
+ * incomplete step. Completed files are only checked against their size and modification date. The journal is deleted when the export was
+ * successful. Entries can be added from the parallel branches of an export.
+ */
+@Log4j
+public class ExportJournal implements Closeable {
+
+    private static final String separator = "\t";
+    private static final String fileEntry = "file";
+    private static final String mergedEntry = "merged";
+    private static final String metadataEntry = "metadata";
+    private static final String accessionEntry = "accession";
+
+    private final boolean enabled;
+    private final Path journalFile;
+    private Writer out;
+    private boolean failed = false;
+
+    @Getter
+    private final Map<String, CopiedFile> copiedFiles = new LinkedHashMap<>();
+    @Getter
+    private CopiedFile mergedFile;
+    @Getter
+    private CopiedFile metadataFile;
+    @Getter
+    private boolean accessionDone = false;
+
+    private ExportJournal(boolean enabled, String fileName, Path stateFolder) {
+        this.enabled = enabled;
+        journalFile = stateFolder.resolve(fileName);
+    }
+
+    /**
+     * Open the journal in the state folder of the object, if checkpoints are enabled in the &lt;checkpoint&gt; element of the configuration. The
+     * entries of an existing journal are read.
+     *
+     * @param config
+     * @param stateFolder folder outside of the export that keeps the state of the object between exports
+     * @return
+     * @throws IOException
+     */
+    public static ExportJournal fromConfig(XMLConfiguration config, Path stateFolder) throws IOException {
+        ExportJournal journal = new ExportJournal(config.getBoolean("checkpoint/@enabled", false),
+                config.getString("checkpoint/@fileName", "exportJournal.txt"), stateFolder);
+        if (journal.enabled && Files.exists(journal.journalFile)) {
+            journal.read();
+            // write the entries into a new file without partially written lines
+            journal.rewrite();
+        }
+        return journal;
+    }
+
+    /**
+     * Create a journal that records nothing, for exports that cannot be resumed
+     */
+    public static ExportJournal disabled() {
+        return new ExportJournal(false, "", Paths.get(""));
+    }
+
+    /**
+     * Check if the journal contains entries of an earlier, incomplete export
+     */
+    public boolean isResumed() {
+        return !copiedFiles.isEmpty() || mergedFile != null || metadataFile != null || accessionDone;
+    }
+
+    /**
+     * Check if PDF files were copied by the earlier export, but the merged PDF file was not generated afterwards
+     */
+    public boolean isMergePending() {
+        if (mergedFile != null) {
+            return false;
+        }
+        for (String name : copiedFiles.keySet()) {
+            if (name.toLowerCase().endsWith(".pdf")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public synchronized void fileCopied(CopiedFile file) {
+        copiedFiles.put(file.getName(), file);
+        append(fileEntry, file);
+    }
+
+    public synchronized void mergeFinished(CopiedFile file) {
+        mergedFile = file;
+        append(mergedEntry, file);
+    }
+
+    public synchronized void metadataWritten(CopiedFile file) {
+        metadataFile = file;
+        append(metadataEntry, file);
+    }
+
+    public synchronized void accessionSucceeded() {
+        accessionDone = true;
+        append(accessionEntry, null);
+    }
+
+    /**
+     * Delete the journal after the export was successful
+     */
+    public void complete() {
+        close();
+        if (enabled) {
+            try {
+                Files.deleteIfExists(journalFile);
+            } catch (IOException e) {
+                log.warn("Export journal " + journalFile + " cannot be deleted", e);
+            }
+        }
+    }
+
+    /**
+     * Append an entry and flush it, so that it survives the end of the JVM. An error disables the journal for the rest of the export.
+     */
+    private synchronized void append(String type, CopiedFile file) {
+        if (!enabled || failed) {
+            return;
+        }
+        try {
+            if (out == null) {
+                out = Files.newBufferedWriter(journalFile, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            }
+            writeEntry(out, type, file);
+            out.flush();
+        } catch (IOException e) {
+            log.error("Cannot write into export journal " + journalFile + ", the export cannot be resumed", e);
+            failed = true;
+            close();
+        }
+    }
+
+    private static void writeEntry(Writer writer, String type, CopiedFile file) throws IOException {
+        StringBuilder line = new StringBuilder(type);
+        if (file != null) {
+            line.append(separator).append(file.getName());
+            line.append(separator).append(file.getSize());
+            line.append(separator).append(file.getLastModified());
+            line.append(separator).append(Long.toHexString(file.getChecksum()));
+            line.append(separator);
+            boolean first = true;
+            for (Entry<String, String> digest : file.getDigests().entrySet()) {
+                if (!first) {
+                    line.append(',');
+                }
+                line.append(digest.getKey()).append('=').append(digest.getValue());
+                first = false;
+            }
+        }
+        writer.write(line.append('\n').toString());
+    }
+
+    /**
+     * Read the entries of the journal. Lines that cannot be parsed are ignored, as well as the last line if it was written only partially.
+     */
+    private void read() throws IOException {
+        String[] lines = Files.readString(journalFile, StandardCharsets.UTF_8).split("\n", -1);
+        // the last element is empty, if the last line was complete
+        for (int i = 0; i < lines.length - 1; i++) {
+            String line = lines[i];
+            String[] fields = line.split(separator, -1);
+            try {
+                if (accessionEntry.equals(fields[0])) {
+                    accessionDone = true;
+                } else if (fields.length == 6) {
+                    CopiedFile file = parseFile(fields);
+                    if (fileEntry.equals(fields[0])) {
+                        copiedFiles.put(file.getName(), file);
+                    } else if (mergedEntry.equals(fields[0])) {
+                        mergedFile = file;
+                    } else if (metadataEntry.equals(fields[0])) {
+                        metadataFile = file;
+                    }
+                }
+            } catch (RuntimeException e) {
+                log.debug("Ignoring invalid line in export journal " + journalFile + ": " + line);
+            }
+        }
+    }
+
+    private static CopiedFile parseFile(String[] fields) {
+        Map<String, String> digests = new LinkedHashMap<>();
+        if (!fields[5].isEmpty()) {
+            for (String digest : fields[5].split(",")) {
+                int index = digest.indexOf('=');
+                digests.put(digest.substring(0, index), digest.substring(index + 1));
+            }
+        }
+        return new CopiedFile(fields[1], Long.parseLong(fields[2]), Long.parseLong(fields[3]), Long.parseUnsignedLong(fields[4], 16),
+                digests.isEmpty() ? Collections.emptyMap() : digests);
+    }
+
+    private void rewrite() throws IOException {
+        Path tempFile = journalFile.resolveSibling(journalFile.getFileName().toString() + ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(tempFile, StandardCharsets.UTF_8)) {
+            for (CopiedFile file : copiedFiles.values()) {
+                writeEntry(writer, fileEntry, file);
+            }
+            if (mergedFile != null) {
+                writeEntry(writer, mergedEntry, mergedFile);
+            }
+            if (metadataFile != null) {
+                writeEntry(writer, metadataEntry, metadataFile);
+            }
+            if (accessionDone) {
+                writeEntry(writer, accessionEntry, null);
+            }
+        }
+        Files.move(tempFile, journalFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    @Override
+    public synchronized void close() {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                log.warn("Export journal " + journalFile + " cannot be closed", e);
+            }
+            out = null;
+        }
+    }
+}
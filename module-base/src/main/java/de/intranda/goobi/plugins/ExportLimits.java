@@ -0,0 +1,66 @@
+package de.intranda.goobi.plugins;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Limits for the number of exports that are in the same phase at the same time. A limit of 0 or less means that the phase is not limited.
+ */
+public class ExportLimits {
+
+    /**
+     * The phases of an export
+     */
+    public enum Phase {
+        WAIT,
+        COPY,
+        VERIFY,
+        MERGE,
+        METADATA,
+        API
+    }
+
+    private final Map<Phase, Semaphore> semaphores = new EnumMap<>(Phase.class);
+
+    /**
+     * 
+     * @param copies number of concurrent copy phases
+     * @param merges number of concurrent PDF merges
+     * @param apiCalls number of concurrent API calls
+     */
+    public ExportLimits(int copies, int merges, int apiCalls) {
+        addLimit(Phase.COPY, copies);
+        addLimit(Phase.MERGE, merges);
+        addLimit(Phase.API, apiCalls);
+    }
+
+    /**
+     * Get limits that don't restrict anything, used for single exports
+     * 
+     * @return
+     */
+    public static ExportLimits unlimited() {
+        return new ExportLimits(0, 0, 0);
+    }
+
+    private void addLimit(Phase phase, int permits) {
+        if (permits > 0) {
+            semaphores.put(phase, new Semaphore(permits, true));
+        }
+    }
+
+    public void acquire(Phase phase) throws InterruptedException {
+        Semaphore semaphore = semaphores.get(phase);
+        if (semaphore != null) {
+            semaphore.acquire();
+        }
+    }
+
+    public void release(Phase phase) {
+        Semaphore semaphore = semaphores.get(phase);
+        if (semaphore != null) {
+            semaphore.release();
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package de.intranda.goobi.plugins;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.jdom2.Document;
+import org.jdom2.Element;
+import org.jdom2.JDOMException;
+import org.jdom2.input.SAXBuilder;
+import org.jdom2.output.Format;
+import org.jdom2.output.XMLOutputter;
+
+import de.intranda.goobi.plugins.FileCopyEngine.CopiedFile;
+import lombok.extern.log4j.Log4j;
+
+/**
+ * List of all files of the last successful export of an object. It is stored in the state folder of the object and used to copy only new or
+ * changed files on the next export of the same object.
+ */
+@Log4j
+public class ExportManifest {
+
+    private static final String rootString = "exportManifest";
+    private static final String fileString = "file";
+    private static final String nameString = "name";
+    private static final String sizeString = "size";
+    private static final String lastModifiedString = "lastModified";
+    private static final String checksumString = "checksum";
+    private static final String typeString = "type";
+    private static final String mergedFileString = "mergedFile";
+
+    private final Map<String, CopiedFile> files = new LinkedHashMap<>();
+    private CopiedFile mergedFile;
+
+    /**
+     * Read an existing manifest. If the file does not exist or cannot be parsed, an empty manifest is returned and all files get exported again.
+     *
+     * @param manifestFile
+     * @return
+     */
+    public static ExportManifest load(Path manifestFile) {
+        ExportManifest manifest = new ExportManifest();
+        if (!Files.exists(manifestFile)) {
+            return manifest;
+        }
+        try {
+            SAXBuilder builder = new SAXBuilder();
+            Document document = builder.build(manifestFile.toFile());
+            for (Element element : document.getRootElement().getChildren(fileString)) {
+                CopiedFile file = readFile(element);
+                manifest.files.put(file.getName(), file);
+            }
+            Element merged = document.getRootElement().getChild(mergedFileString);
+            if (merged != null) {
+                manifest.mergedFile = readFile(merged);
+            }
+        } catch (JDOMException | IOException | RuntimeException e) {
+            log.warn("Export manifest " + manifestFile + " cannot be read, all files are exported again", e);
+            manifest.files.clear();
+            manifest.mergedFile = null;
+        }
+        return manifest;
+    }
+
+    private static CopiedFile readFile(Element element) {
+        Map<String, String> digests = new LinkedHashMap<>();
+        for (Element digest : element.getChildren(checksumString)) {
+            digests.put(digest.getAttributeValue(typeString), digest.getTextTrim());
+        }
+        // linked files without digests have no checksum
+        String checksum = element.getAttributeValue(checksumString);
+        return new CopiedFile(element.getAttributeValue(nameString), Long.parseLong(element.getAttributeValue(sizeString)),
+                Long.parseLong(element.getAttributeValue(lastModifiedString)),
+                checksum == null ? CopiedFile.unknownChecksum : Long.parseUnsignedLong(checksum, 16), digests);
+    }
+
+    private static Element createElement(String name, CopiedFile file) {
+        Element element = new Element(name);
+        element.setAttribute(nameString, file.getName());
+        element.setAttribute(sizeString, String.valueOf(file.getSize()));
+        element.setAttribute(lastModifiedString, String.valueOf(file.getLastModified()));
+        if (file.hasChecksum()) {
+            element.setAttribute(checksumString, Long.toHexString(file.getChecksum()));
+        }
+        for (Entry<String, String> digest : file.getDigests().entrySet()) {
+            Element digestElement = new Element(checksumString);
+            digestElement.setAttribute(typeString, digest.getKey());
+            digestElement.setText(digest.getValue());
+            element.addContent(digestElement);
+        }
+        return element;
+    }
+
+    /**
+     * Get the entry of a file from the last export, if the file is still unchanged and all digests are known
+     *
+     * @param name name of the file
+     * @param size current size of the source file
+     * @param lastModified current modification date of the source file
+     * @param digestTypes digests that must be known for the file
+     * @return the previous entry or null, if the file is new or was changed or a digest is missing
+     */
+    public CopiedFile getUnchangedFile(String name, long size, long lastModified, List<DigestType> digestTypes) {
+        CopiedFile file = files.get(name);
+        if (file != null && file.getSize() == size && file.getLastModified() == lastModified && file.hasDigests(digestTypes)) {
+            return file;
+        }
+        return null;
+    }
+
+    public boolean contains(String name) {
+        return files.containsKey(name);
+    }
+
+    public Collection<String> getFileNames() {
+        return files.keySet();
+    }
+
+    /**
+     * Get the entry of the merged PDF file from the last export, if the file in the export folder is still unchanged and all digests are known
+     *
+     * @param size current size of the merged file
+     * @param lastModified current modification date of the merged file
+     * @param digestTypes digests that must be known for the file
+     * @return the previous entry or null, if the file was changed or is not known or a digest is missing
+     */
+    public CopiedFile getUnchangedMergedFile(long size, long lastModified, List<DigestType> digestTypes) {
+        if (mergedFile != null && mergedFile.getSize() == size && mergedFile.getLastModified() == lastModified
+                && mergedFile.hasDigests(digestTypes)) {
+            return mergedFile;
+        }
+        return null;
+    }
+
+    public void setMergedFile(CopiedFile mergedFile) {
+        this.mergedFile = mergedFile;
+    }
+
+    public void addFiles(Collection<CopiedFile> copiedFiles) {
+        for (CopiedFile file : copiedFiles) {
+            files.put(file.getName(), file);
+        }
+    }
+
+    /**
+     * Write the manifest into a temporary file and move it into place afterwards
+     *
+     * @param manifestFile
+     * @throws IOException
+     */
+    public void save(Path manifestFile) throws IOException {
+        Element root = new Element(rootString);
+        for (CopiedFile file : files.values()) {
+            root.addContent(createElement(fileString, file));
+        }
+        if (mergedFile != null) {
+            root.addContent(createElement(mergedFileString, mergedFile));
+        }
+        Path tempFile = manifestFile.resolveSibling(manifestFile.getFileName().toString() + ".tmp");
+        try (OutputStream out = Files.newOutputStream(tempFile)) {
+            new XMLOutputter(Format.getPrettyFormat()).output(new Document(root), out);
+        }
+        Files.move(tempFile, manifestFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
@@ -0,0 +1,121 @@
+package de.intranda.goobi.plugins;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import de.intranda.goobi.plugins.ExportLimits.Phase;
+import de.intranda.goobi.plugins.ExportResult.PhaseStatistics;
+import lombok.extern.log4j.Log4j;
+
+/**
+ * Collects counters and duration histograms of all exports per phase and outcome and publishes them via JMX
+ */
+@Log4j
+public class ExportMetrics implements ExportMetricsMXBean {
+
+    private static final String objectName = "de.intranda.goobi.plugins:type=StanfordExport";
+    /** upper bounds of the histogram buckets in ms */
+    private static final long[] buckets = { 100, 1000, 10000, 60000, 300000, 1800000 };
+
+    private static ExportMetrics instance;
+
+    private final LongAdder successfulExports = new LongAdder();
+    private final LongAdder failedExports = new LongAdder();
+    private final Map<String, LongAdder> counters = new ConcurrentHashMap<>();
+    private final Map<String, LongAdder> histogram = new ConcurrentHashMap<>();
+
+    private ExportMetrics() {
+    }
+
+    /**
+     * Get the metrics, they are registered at the platform MBean server on the first call
+     * 
+     * @return
+     */
+    public static synchronized ExportMetrics getInstance() {
+        if (instance == null) {
+            instance = new ExportMetrics();
+            try {
+                MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+                ObjectName name = new ObjectName(objectName);
+                if (server.isRegistered(name)) {
+                    // the plugin was loaded again, replace the old bean
+                    server.unregisterMBean(name);
+                }
+                server.registerMBean(instance, name);
+            } catch (JMException e) {
+                log.error("Export metrics cannot be registered", e);
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * Add the statistics of a finished export
+     * 
+     * @param result
+     */
+    public void record(ExportResult result) {
+        String outcome = result.isSuccessful() ? "success" : "failure";
+        if (result.isSuccessful()) {
+            successfulExports.increment();
+        } else {
+            failedExports.increment();
+        }
+        for (Map.Entry<Phase, PhaseStatistics> entry : result.getPhases().entrySet()) {
+            String prefix = entry.getKey().name().toLowerCase() + "." + outcome + ".";
+            PhaseStatistics statistics = entry.getValue();
+            add(counters, prefix + "count", 1);
+            add(counters, prefix + "millis", statistics.getDurationMillis());
+            add(counters, prefix + "bytes", statistics.getBytes());
+            add(counters, prefix + "files", statistics.getFiles());
+            for (long bucket : buckets) {
+                if (statistics.getDurationMillis() <= bucket) {
+                    add(histogram, prefix + "le_" + bucket + "ms", 1);
+                }
+            }
+            add(histogram, prefix + "le_inf", 1);
+        }
+        add(counters, "throttle." + outcome + ".millis", result.getThrottle().getWaitMillis());
+        add(counters, "throttle." + outcome + ".decreases", result.getThrottle().getDecreases());
+    }
+
+    private static void add(Map<String, LongAdder> map, String key, long value) {
+        map.computeIfAbsent(key, k -> new LongAdder()).add(value);
+    }
+
+    private static Map<String, Long> snapshot(Map<String, LongAdder> map) {
+        Map<String, Long> values = new TreeMap<>();
+        for (Map.Entry<String, LongAdder> entry : map.entrySet()) {
+            values.put(entry.getKey(), entry.getValue().sum());
+        }
+        return values;
+    }
+
+    @Override
+    public long getSuccessfulExports() {
+        return successfulExports.sum();
+    }
+
+    @Override
+    public long getFailedExports() {
+        return failedExports.sum();
+    }
+
+    @Override
+    public Map<String, Long> getPhaseCounters() {
+        return snapshot(counters);
+    }
+
+    @Override
+    public Map<String, Long> getPhaseDurationHistogram() {
+        return snapshot(histogram);
+    }
+}
@@ -0,0 +1,30 @@
+package de.intranda.goobi.plugins;
+
+import java.util.Map;
+
+/**
+ * Metrics of all exports since the plugin was loaded, available via JMX as de.intranda.goobi.plugins:type=StanfordExport
+ */
+public interface ExportMetricsMXBean {
+
+    long getSuccessfulExports();
+
+    long getFailedExports();
+
+    /**
+     * Counters per phase and outcome, e.g. <code>copy.success.count</code>, <code>copy.success.bytes</code>, <code>copy.success.files</code> or
+     * <code>copy.success.millis</code>. The time spent waiting for the bandwidth limiter and the reductions of the concurrency are counted as
+     * <code>throttle.success.millis</code> and <code>throttle.success.decreases</code>.
+     * 
+     * @return
+     */
+    Map<String, Long> getPhaseCounters();
+
+    /**
+     * Cumulative histogram of the phase durations per phase and outcome, e.g. <code>merge.failure.le_10000ms</code> counts all failed exports with a
+     * merge phase of at most ten seconds
+     * 
+     * @return
+     */
+    Map<String, Long> getPhaseDurationHistogram();
+}
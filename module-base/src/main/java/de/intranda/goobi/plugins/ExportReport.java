@@ -0,0 +1,147 @@
+package de.intranda.goobi.plugins;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.Locale;
+import java.util.Map;
+
+import org.apache.commons.configuration.XMLConfiguration;
+import org.apache.commons.lang3.StringUtils;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import de.intranda.goobi.plugins.ExportLimits.Phase;
+import de.intranda.goobi.plugins.ExportResult.PhaseStatistics;
+import de.intranda.goobi.plugins.ExportResult.ThrottleStatistics;
+
+/**
+ * Writes the statistics of an export as JSON file. The file is written next to the exported object or into a separate folder, never into the
+ * published export.
+ */
+public class ExportReport {
+
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    private ExportReport() {
+    }
+
+    /**
+     * Get the location of the report from the &lt;report&gt; element. The file is named &lt;objectId&gt;_&lt;fileName&gt; and written into the
+     * configured folder, or next to the object folder if no folder is configured.
+     *
+     * @param config
+     * @param objectFolder published folder of the object
+     * @param objectId
+     * @return the report file or null, if no report shall be written
+     */
+    public static Path getReportFile(XMLConfiguration config, Path objectFolder, String objectId) {
+        if (!config.getBoolean("report/@enabled", false)) {
+            return null;
+        }
+        String folder = config.getString("report/@folder", "");
+        String fileName = objectId + "_" + config.getString("report/@fileName", "exportReport.json");
+        return StringUtils.isBlank(folder) ? objectFolder.resolveSibling(fileName) : Paths.get(folder, fileName);
+    }
+
+    /**
+     * Write the report into a temporary file and move it into place afterwards
+     * 
+     * @param result
+     * @param reportFile
+     * @throws IOException
+     */
+    public static void write(ExportResult result, Path reportFile) throws IOException {
+        Files.createDirectories(reportFile.getParent());
+        Path tempFile = reportFile.resolveSibling(reportFile.getFileName().toString() + ".tmp");
+        try (Writer writer = Files.newBufferedWriter(tempFile, StandardCharsets.UTF_8)) {
+            writer.write(toJson(result));
+        }
+        Files.move(tempFile, reportFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * 
+     * @param result
+     * @return the report as JSON
+     * @throws JsonProcessingException
+     */
+    public static String toJson(ExportResult result) throws JsonProcessingException {
+        ObjectNode json = mapper.createObjectNode();
+        json.put("processId", result.getProcessId());
+        json.put("processTitle", result.getProcessTitle());
+        json.put("objectId", result.getObjectId());
+        json.put("start", Instant.ofEpochMilli(result.getStartTime()).toString());
+        json.put("durationMillis", result.getDurationMillis());
+        json.put("successful", result.isSuccessful());
+        ArrayNode problems = json.putArray("problems");
+        for (String problem : result.getProblems()) {
+            problems.add(problem);
+        }
+        ObjectNode phases = json.putObject("phases");
+        for (Map.Entry<Phase, PhaseStatistics> entry : result.getPhases().entrySet()) {
+            PhaseStatistics statistics = entry.getValue();
+            ObjectNode phase = phases.putObject(entry.getKey().name().toLowerCase());
+            phase.put("durationMillis", statistics.getDurationMillis());
+            phase.put("bytes", statistics.getBytes());
+            phase.put("files", statistics.getFiles());
+            phase.put("megabytesPerSecond", Math.round(statistics.getMegabytesPerSecond() * 100) / 100d);
+        }
+        ThrottleStatistics throttle = result.getThrottle();
+        ObjectNode throttleNode = json.putObject("throttle");
+        throttleNode.put("waitMillis", throttle.getWaitMillis());
+        throttleNode.put("lowestConcurrency", throttle.getLowestConcurrency());
+        throttleNode.put("highestConcurrency", throttle.getHighestConcurrency());
+        throttleNode.put("decreases", throttle.getDecreases());
+        throttleNode.put("increases", throttle.getIncreases());
+        if (result.getPhases().containsKey(Phase.MERGE)) {
+            json.putObject("pdfMerge").put("sampledHeapBytes", result.getMergeSampledHeapBytes());
+        }
+        return mapper.writerWithDefaultPrettyPrinter().writeValueAsString(json) + "\n";
+    }
+
+    /**
+     * 
+     * @param result
+     * @return a single line with the duration and throughput of all phases, used for logging
+     */
+    public static String getSummary(ExportResult result) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("Export of ")
+                .append(result.getProcessTitle())
+                .append(result.isSuccessful() ? " finished" : " failed")
+                .append(" after ")
+                .append(result.getDurationMillis())
+                .append(" ms");
+        for (Map.Entry<Phase, PhaseStatistics> entry : result.getPhases().entrySet()) {
+            PhaseStatistics statistics = entry.getValue();
+            sb.append(", ").append(entry.getKey().name().toLowerCase()).append(": ").append(statistics.getDurationMillis()).append(" ms");
+            if (statistics.getFiles() > 0) {
+                sb.append(" (")
+                        .append(statistics.getFiles())
+                        .append(" files, ")
+                        .append(String.format(Locale.ENGLISH, "%.2f", statistics.getMegabytesPerSecond()))
+                        .append(" MB/s)");
+            }
+        }
+        ThrottleStatistics throttle = result.getThrottle();
+        if (throttle.isThrottled()) {
+            sb.append(", throttled: ")
+                    .append(throttle.getWaitMillis())
+                    .append(" ms waiting for bandwidth, ")
+                    .append(throttle.getLowestConcurrency())
+                    .append(" to ")
+                    .append(throttle.getHighestConcurrency())
+                    .append(" files at the same time");
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,122 @@
+package de.intranda.goobi.plugins;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+import de.intranda.goobi.plugins.ExportLimits.Phase;
+import lombok.Getter;
+import lombok.Setter;
+
+/**
+ * Result of the export of a single process, containing the problems and statistics about each phase
+ */
+@Getter
+public class ExportResult {
+
+    private final Integer processId;
+    private final String processTitle;
+    private final long startTime = System.currentTimeMillis();
+    private final List<String> problems = new ArrayList<>();
+    private final Map<Phase, PhaseStatistics> phases = new EnumMap<>(Phase.class);
+    private final ThrottleStatistics throttle = new ThrottleStatistics();
+    @Setter
+    private boolean successful = false;
+    @Setter
+    private String objectId;
+    @Setter
+    private Path objectFolder;
+    @Setter
+    private long durationMillis;
+    private long bytes = 0;
+    /** highest used heap of the JVM sampled during the PDF merge, it includes everything else running at the same time */
+    @Setter
+    private long mergeSampledHeapBytes;
+
+    public ExportResult(Integer processId, String processTitle) {
+        this.processId = processId;
+        this.processTitle = processTitle;
+    }
+
+    public void addProblem(String problem) {
+        problems.add(problem);
+    }
+
+    public void addPhaseDuration(Phase phase, long durationMillis) {
+        addPhase(phase, durationMillis, 0, 0);
+    }
+
+    /**
+     * Add the statistics of a phase, if the phase was already recorded the values are summed up
+     * 
+     * @param phase
+     * @param durationMillis
+     * @param bytes number of bytes read or written in this phase
+     * @param files number of files processed in this phase
+     */
+    public void addPhase(Phase phase, long durationMillis, long bytes, int files) {
+        PhaseStatistics statistics = phases.computeIfAbsent(phase, p -> new PhaseStatistics());
+        statistics.durationMillis += durationMillis;
+        statistics.bytes += bytes;
+        statistics.files += files;
+    }
+
+    public void addBytes(long value) {
+        bytes += value;
+    }
+
+    /**
+     * Time spent waiting for the bandwidth limiter, summed up over all threads, and changes of the number of files copied at the same time
+     */
+    @Getter
+    public static class ThrottleStatistics {
+        private long waitMillis;
+        private int lowestConcurrency;
+        private int highestConcurrency;
+        private int decreases;
+        private int increases;
+
+        public void addWaitMillis(long millis) {
+            waitMillis += millis;
+        }
+
+        /**
+         * Add the limits of a copy phase
+         * 
+         * @param concurrency changes of the limit during the copy phase
+         */
+        public void addConcurrency(AdaptiveConcurrency.Window concurrency) {
+            lowestConcurrency = lowestConcurrency == 0 ? concurrency.getLowestLimit() : Math.min(lowestConcurrency, concurrency.getLowestLimit());
+            highestConcurrency = Math.max(highestConcurrency, concurrency.getHighestLimit());
+            decreases += concurrency.getDecreases();
+            increases += concurrency.getIncreases();
+        }
+
+        /**
+         * Check if the export was slowed down by the bandwidth limiter or by the adaptive concurrency
+         */
+        public boolean isThrottled() {
+            return waitMillis > 0 || decreases > 0;
+        }
+    }
+
+    /**
+     * Duration, data volume and number of files of a single phase
+     */
+    @Getter
+    public static class PhaseStatistics {
+        private long durationMillis;
+        private long bytes;
+        private int files;
+
+        /**
+         * 
+         * @return throughput in MB per second
+         */
+        public double getMegabytesPerSecond() {
+            return durationMillis == 0 ? 0 : bytes / (1024d * 1024d) / (durationMillis / 1000d);
+        }
+    }
+}
@@ -0,0 +1,753 @@
+package de.intranda.goobi.plugins;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.zip.CRC32C;
+import java.util.zip.Checksum;
+
+import org.apache.commons.configuration.XMLConfiguration;
+
+import de.intranda.goobi.plugins.PageIndex.IndexedFile;
+import lombok.Getter;
+import lombok.extern.log4j.Log4j;
+
+/**
+ * Copies the files of a folder into the export folder and validates the result.
+ *
+ * Each file is hashed while it is streamed to the destination, afterwards the written file is read once more and compared against this checksum.
+ * Several files are processed at the same time, the first failure cancels all remaining files.
+ *
+ * The configured digests are computed in the same read pass. For large files the digests of a buffer are calculated on separate threads while the
+ * next buffer is read and written, so the hashing of a large image is spread over several cores. These threads are shared by all exports.
+ *
+ * Instead of copying the data through the JVM, the files can be transferred as hard link, as reflink or with a copy inside of the kernel. If a link
+ * is not possible, the engine falls back to the kernel copy. Links share their data with the source file, they are only read once to compute the
+ * digests and not at all if no digests are configured. A hard link is verified by checking that it refers to the same file as the source, a
+ * reflink by its size. Other copies are compared against the source file.
+ *
+ * All reads and writes take their bytes from the shared bandwidth limiter. The number of files processed at the same time can adapt to the write
+ * latency of the storage, up to the number of threads.
+ */
+@Log4j
+public class FileCopyEngine implements AutoCloseable {
+
+    private static final long transferChunkSize = 64L * 1024 * 1024;
+    // smaller chunks for the kernel copy, if the bandwidth is limited
+    private static final long throttledChunkSize = 1024L * 1024;
+
+    private final ExecutorService executor;
+    private final ExecutorService digestExecutor;
+    private final int bufferSize;
+    private final TransferStrategy strategy;
+    private final List<DigestType> digestTypes;
+    private final long parallelDigestThreshold;
+    private final BandwidthLimiter limiter;
+    private final AdaptiveConcurrency concurrency;
+    // file stores where cp can create reflinks, checked once while the plugin is loaded
+    private static final Map<FileStore, Boolean> reflinkSupport = new ConcurrentHashMap<>();
+    // one thread per core for the digests of all exports, created on first use and never shut down
+    private static ExecutorService sharedDigestExecutor;
+
+    // source folders where creating a link failed already
+    private final Set<Path> linkUnsupported = ConcurrentHashMap.newKeySet();
+    private final Set<Path> reflinkUnsupported = ConcurrentHashMap.newKeySet();
+    private final Map<Path, FileStore> fileStores = new ConcurrentHashMap<>();
+
+    /**
+     *
+     * @param threads number of files to process at the same time
+     * @param bufferSize size of the read and write buffer per file in bytes
+     */
+    public FileCopyEngine(int threads, int bufferSize) {
+        this(threads, bufferSize, TransferStrategy.COPY, Collections.emptyList(), Long.MAX_VALUE);
+    }
+
+    /**
+     *
+     * @param threads number of files to process at the same time
+     * @param bufferSize size of the read and write buffer per file in bytes
+     * @param strategy how the files are transferred into the target folder
+     * @param digestTypes digests to compute for each file
+     * @param parallelDigestThreshold minimum file size in bytes to compute the digests on separate threads
+     */
+    public FileCopyEngine(int threads, int bufferSize, TransferStrategy strategy, List<DigestType> digestTypes, long parallelDigestThreshold) {
+        this(threads, bufferSize, strategy, digestTypes, parallelDigestThreshold, BandwidthLimiter.unlimited(), AdaptiveConcurrency.fixed(threads));
+    }
+
+    /**
+     *
+     * @param threads number of files to process at the same time
+     * @param bufferSize size of the read and write buffer per file in bytes
+     * @param strategy how the files are transferred into the target folder
+     * @param digestTypes digests to compute for each file
+     * @param parallelDigestThreshold minimum file size in bytes to compute the digests on separate threads
+     * @param limiter bandwidth limiter for all reads and writes
+     * @param concurrency limit of the files processed at the same time, it should not exceed the number of threads
+     */
+    public FileCopyEngine(int threads, int bufferSize, TransferStrategy strategy, List<DigestType> digestTypes, long parallelDigestThreshold,
+            BandwidthLimiter limiter, AdaptiveConcurrency concurrency) {
+        this.limiter = limiter;
+        this.concurrency = concurrency;
+        this.bufferSize = Math.max(bufferSize, 4096);
+        this.strategy = strategy;
+        this.digestTypes = digestTypes;
+        this.parallelDigestThreshold = parallelDigestThreshold;
+        AtomicInteger counter = new AtomicInteger();
+        executor = Executors.newFixedThreadPool(Math.max(threads, 1), r -> {
+            Thread thread = new Thread(r, "stanford-export-copy-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        digestExecutor = digestTypes.isEmpty() ? null : getDigestExecutor();
+    }
+
+    private static synchronized ExecutorService getDigestExecutor() {
+        if (sharedDigestExecutor == null) {
+            AtomicInteger digestCounter = new AtomicInteger();
+            sharedDigestExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), r -> {
+                Thread thread = new Thread(r, "stanford-export-digest-" + digestCounter.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return sharedDigestExecutor;
+    }
+
+    /**
+     * Read the settings from the &lt;copy&gt;, &lt;checksums&gt; and &lt;throttle&gt; elements of the plugin configuration
+     *
+     * @param config
+     * @return
+     */
+    public static FileCopyEngine fromConfig(XMLConfiguration config) {
+        return fromConfig(config, AdaptiveConcurrency.getInstance(config));
+    }
+
+    /**
+     * Read the settings from the &lt;copy&gt;, &lt;checksums&gt; and &lt;throttle&gt; elements of the plugin configuration, but use the given
+     * concurrency limit
+     *
+     * @param config
+     * @param concurrency
+     * @return
+     */
+    public static FileCopyEngine fromConfig(XMLConfiguration config, AdaptiveConcurrency concurrency) {
+        return new FileCopyEngine(config.getInt("copy/@threads", 4), config.getInt("copy/@bufferSize", 1024) * 1024,
+                TransferStrategy.fromConfig(config), DigestType.fromConfig(config), config.getLong("checksums/@parallelThreshold", 16) * 1024 * 1024,
+                BandwidthLimiter.getInstance(config), concurrency);
+    }
+
+    /**
+     * Copy the given files from the source folder into the target folder and verify each copy
+     *
+     * @param sourceFolder
+     * @param fileNames
+     * @param targetFolder
+     * @return the result, containing either all copied files or the first file that failed
+     * @throws InterruptedException
+     */
+    public CopyResult copyAndVerify(Path sourceFolder, List<String> fileNames, Path targetFolder) throws InterruptedException {
+        List<IndexedFile> files = new ArrayList<>(fileNames.size());
+        for (String fileName : fileNames) {
+            files.add(new IndexedFile(fileName, -1, -1));
+        }
+        return copyFiles(sourceFolder, files, targetFolder);
+    }
+
+    /**
+     * Copy the given files from the source folder into the target folder and verify each copy. The modification dates of the page index are used
+     * for the copies, if they are known.
+     *
+     * @param sourceFolder
+     * @param files
+     * @param targetFolder
+     * @return the result, containing either all copied files or the first file that failed
+     * @throws InterruptedException
+     */
+    public CopyResult copyFiles(Path sourceFolder, List<IndexedFile> files, Path targetFolder) throws InterruptedException {
+        return copyFiles(sourceFolder, files, targetFolder, null);
+    }
+
+    /**
+     * Copy the given files from the source folder into the target folder and verify each copy. The listener is called on the calling thread for
+     * each file as soon as it was copied and verified.
+     *
+     * @param sourceFolder
+     * @param files
+     * @param targetFolder
+     * @param listener can be null
+     * @return the result, containing either all copied files or the first file that failed
+     * @throws InterruptedException
+     */
+    public CopyResult copyFiles(Path sourceFolder, List<IndexedFile> files, Path targetFolder, Consumer<CopiedFile> listener)
+            throws InterruptedException {
+        AtomicBoolean cancelled = new AtomicBoolean(false);
+        CopyResult result = new CopyResult();
+        CompletionService<CopiedFile> completionService = new ExecutorCompletionService<>(executor);
+        List<Future<CopiedFile>> futures = new ArrayList<>(files.size());
+        for (IndexedFile file : files) {
+            Path source = sourceFolder.resolve(file.getName());
+            Path target = targetFolder.resolve(file.getName());
+            long lastModified = file.getLastModified();
+            futures.add(completionService.submit(() -> copyFile(source, target, lastModified, cancelled, result)));
+        }
+
+        try {
+            for (int i = 0; i < futures.size(); i++) {
+                Future<CopiedFile> future = completionService.take();
+                try {
+                    CopiedFile copiedFile = future.get();
+                    result.getFiles().add(copiedFile);
+                    if (listener != null) {
+                        listener.accept(copiedFile);
+                    }
+                } catch (ExecutionException e) {
+                    cancel(futures, cancelled);
+                    Throwable cause = e.getCause();
+                    if (cause instanceof CopyException) {
+                        CopyException ce = (CopyException) cause;
+                        result.setFailure(ce.getFile(), ce.isChecksumError(), ce.getMessage());
+                    } else {
+                        result.setFailure(targetFolder, false, String.valueOf(cause));
+                    }
+                    return result;
+                } catch (CancellationException e) {
+                    // only happens after another file failed already
+                }
+            }
+        } catch (InterruptedException e) {
+            cancel(futures, cancelled);
+            throw e;
+        }
+        return result;
+    }
+
+    private void cancel(List<Future<CopiedFile>> futures, AtomicBoolean cancelled) {
+        cancelled.set(true);
+        for (Future<CopiedFile> future : futures) {
+            future.cancel(true);
+        }
+    }
+
+    private CopiedFile copyFile(Path source, Path target, long lastModified, AtomicBoolean cancelled, CopyResult result)
+            throws CopyException, InterruptedException {
+        concurrency.acquire();
+        try {
+            FileTime modificationDate = lastModified < 0 ? Files.getLastModifiedTime(source) : FileTime.fromMillis(lastModified);
+            return copyAndVerifyFile(source, target, modificationDate, cancelled, result);
+        } catch (CopyException e) {
+            throw e;
+        } catch (IOException e) {
+            log.error("Error while copying " + source + " to " + target, e);
+            throw new CopyException(target, false, e.getMessage());
+        } finally {
+            concurrency.release();
+        }
+    }
+
+    private CopiedFile copyAndVerifyFile(Path source, Path target, FileTime lastModified, AtomicBoolean cancelled, CopyResult result)
+            throws IOException {
+        long start = System.nanoTime();
+        // never write into an existing file, it can be a hard link to a source file
+        Files.deleteIfExists(target);
+        if (strategy == TransferStrategy.COPY) {
+            return copyContent(source, target, lastModified, cancelled, result, start);
+        }
+
+        long[] throttleNanos = new long[1];
+        TransferStrategy usedStrategy = transfer(source, target, cancelled, throttleNanos);
+        if (usedStrategy != TransferStrategy.HARDLINK) {
+            Files.setLastModifiedTime(target, lastModified);
+        }
+        long copied = System.nanoTime();
+        result.copyNanos.add(copied - start);
+        result.throttleNanos.add(throttleNanos[0]);
+        // links don't write any data, they say nothing about the latency of the storage
+        if (usedStrategy == TransferStrategy.TRANSFER) {
+            concurrency.record(Files.size(target), copied - start - throttleNanos[0]);
+        }
+
+        // a hard link is verified by checking that it is the same file as the source, a reflink by its size
+        if (usedStrategy == TransferStrategy.HARDLINK && !Files.isSameFile(source, target)) {
+            throw new CopyException(target, true, "Hard link does not point to the source file: " + target.toString());
+        }
+        if (usedStrategy == TransferStrategy.REFLINK && Files.size(source) != Files.size(target)) {
+            throw new CopyException(target, true, "Size of the reflink differs from the source file: " + target.toString());
+        }
+
+        if (usedStrategy.isLink() && digestTypes.isEmpty()) {
+            // the link was verified above, without digests there is nothing to gain from reading the data
+            result.linkedFiles.increment();
+            result.verifyNanos.add(System.nanoTime() - copied);
+            return new CopiedFile(source.getFileName().toString(), Files.size(target), lastModified.toMillis(), CopiedFile.unknownChecksum);
+        }
+
+        // the digests are computed from the exported file, for links this is the only time the data is read
+        FileHash targetHash = hashFile(target, createDigests(), cancelled);
+        result.throttleNanos.add(targetHash.throttleNanos);
+        if (usedStrategy.isLink()) {
+            result.linkedFiles.increment();
+        } else {
+            FileHash sourceHash = hashFile(source, new MessageDigest[0], cancelled);
+            result.throttleNanos.add(sourceHash.throttleNanos);
+            if (sourceHash.size != targetHash.size || sourceHash.checksum != targetHash.checksum) {
+                throw new CopyException(target, true, "Checksum mismatch: " + target.toString());
+            }
+        }
+        result.verifyNanos.add(System.nanoTime() - copied);
+        return new CopiedFile(source.getFileName().toString(), targetHash.size, lastModified.toMillis(), targetHash.checksum, targetHash.digests);
+    }
+
+    /**
+     * Copy the file through a buffer, compute checksum and digests on the way and read the written file again for verification
+     */
+    private CopiedFile copyContent(Path source, Path target, FileTime lastModified, AtomicBoolean cancelled, CopyResult result, long start)
+            throws IOException {
+        FileHash sourceHash;
+        try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+                FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                        StandardOpenOption.WRITE)) {
+            sourceHash = hash(in, out, createDigests(), cancelled);
+        }
+        Files.setLastModifiedTime(target, lastModified);
+
+        long copied = System.nanoTime();
+        result.copyNanos.add(copied - start);
+        result.throttleNanos.add(sourceHash.throttleNanos);
+        concurrency.record(sourceHash.size, copied - start - sourceHash.throttleNanos);
+
+        // read the written file again to make sure the data arrived on the storage
+        FileHash targetHash = hashFile(target, new MessageDigest[0], cancelled);
+        result.verifyNanos.add(System.nanoTime() - copied);
+        result.throttleNanos.add(targetHash.throttleNanos);
+        if (sourceHash.size != targetHash.size || sourceHash.checksum != targetHash.checksum) {
+            throw new CopyException(target, true, "Checksum mismatch: " + target.toString());
+        }
+        return new CopiedFile(source.getFileName().toString(), sourceHash.size, lastModified.toMillis(), sourceHash.checksum, sourceHash.digests);
+    }
+
+    /**
+     * Transfer the file with the configured strategy. If a link cannot be created, the data is copied inside of the kernel instead.
+     *
+     * With AUTO, a hard link is used if source and target are on the same file store, otherwise a reflink if the file store of the target
+     * supports it.
+     *
+     * @param throttleNanos the time waited for the bandwidth limiter is added to the first element
+     * @return the strategy that was used
+     */
+    private TransferStrategy transfer(Path source, Path target, AtomicBoolean cancelled, long[] throttleNanos) throws IOException {
+        boolean auto = strategy == TransferStrategy.AUTO;
+        boolean sameFileStore = auto && getFileStore(source.getParent()).equals(getFileStore(target.getParent()));
+        if ((strategy == TransferStrategy.HARDLINK || sameFileStore) && createHardLink(source, target)) {
+            return TransferStrategy.HARDLINK;
+        }
+        if ((strategy == TransferStrategy.REFLINK || auto) && isReflinkSupported(target.getParent()) && createReflink(source, target, cancelled)) {
+            return TransferStrategy.REFLINK;
+        }
+        throttleNanos[0] += transferContent(source, target, cancelled);
+        return TransferStrategy.TRANSFER;
+    }
+
+    /**
+     * Get the file store of a folder, the file stores are looked up once per folder
+     */
+    private FileStore getFileStore(Path folder) throws IOException {
+        FileStore fileStore = fileStores.get(folder);
+        if (fileStore == null) {
+            fileStore = Files.getFileStore(folder);
+            fileStores.put(folder, fileStore);
+        }
+        return fileStore;
+    }
+
+    /**
+     * Check once per file store if cp can create reflinks on it, by cloning a small file in the given folder
+     */
+    private boolean isReflinkSupported(Path folder) throws IOException {
+        FileStore fileStore = getFileStore(folder);
+        Boolean supported = reflinkSupport.get(fileStore);
+        if (supported == null) {
+            // the first thread checks the file store, all others wait for the result
+            synchronized (reflinkSupport) {
+                supported = reflinkSupport.get(fileStore);
+                if (supported == null) {
+                    supported = probeReflink(folder);
+                    reflinkSupport.put(fileStore, supported);
+                    log.info("Reflinks are " + (supported ? "" : "not ") + "supported on " + fileStore);
+                }
+            }
+        }
+        return supported;
+    }
+
+    private static boolean probeReflink(Path folder) throws IOException {
+        Path probe = Files.createTempFile(folder, ".reflink", ".probe");
+        Path clone = probe.resolveSibling(probe.getFileName().toString() + ".clone");
+        try {
+            Files.write(probe, new byte[] { 1 });
+            Process process = new ProcessBuilder("cp", "--reflink=always", probe.toString(), clone.toString()).redirectErrorStream(true)
+                    .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                    .start();
+            if (!process.waitFor(10, TimeUnit.SECONDS)) {
+                process.destroyForcibly();
+                return false;
+            }
+            return process.exitValue() == 0;
+        } catch (IOException e) {
+            log.debug("cp cannot be started: " + e.getMessage());
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Copy was cancelled");
+        } finally {
+            Files.deleteIfExists(clone);
+            Files.deleteIfExists(probe);
+        }
+    }
+
+    private boolean createHardLink(Path source, Path target) {
+        if (linkUnsupported.contains(source.getParent())) {
+            return false;
+        }
+        try {
+            Files.createLink(target, source);
+            return true;
+        } catch (IOException | UnsupportedOperationException e) {
+            if (linkUnsupported.add(source.getParent())) {
+                log.warn("Hard links from " + source.getParent() + " are not possible, copying the files instead: " + e.getMessage());
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Clone the file with cp, the java API has no support for reflinks. If the clone fails although the file store supports reflinks, e.g.
+     * because source and target are on different file systems, it is not tried again for other files of the same folder.
+     */
+    private boolean createReflink(Path source, Path target, AtomicBoolean cancelled) throws IOException {
+        Path folder = source.getParent();
+        if (reflinkUnsupported.contains(folder)) {
+            return false;
+        }
+        int exitCode = -1;
+        try {
+            Process process = new ProcessBuilder("cp", "--reflink=always", "--preserve=timestamps", source.toString(), target.toString())
+                    .redirectErrorStream(true)
+                    .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                    .start();
+            try {
+                while (!process.waitFor(100, TimeUnit.MILLISECONDS)) {
+                    if (cancelled.get()) {
+                        process.destroyForcibly();
+                        throw new IOException("Copy was cancelled");
+                    }
+                }
+            } catch (InterruptedException e) {
+                process.destroyForcibly();
+                Thread.currentThread().interrupt();
+                throw new IOException("Copy was cancelled");
+            }
+            exitCode = process.exitValue();
+        } catch (IOException e) {
+            if (cancelled.get() || Thread.currentThread().isInterrupted()) {
+                throw e;
+            }
+            log.debug("cp cannot be started: " + e.getMessage());
+        }
+        if (exitCode == 0) {
+            return true;
+        }
+        Files.deleteIfExists(target);
+        if (reflinkUnsupported.add(folder)) {
+            log.info("Reflinks from " + folder + " are not possible, copying the files instead");
+        }
+        return false;
+    }
+
+    /**
+     * Copy the data inside of the kernel
+     *
+     * @return the time waited for the bandwidth limiter in ns
+     */
+    private long transferContent(Path source, Path target, AtomicBoolean cancelled) throws IOException {
+        long chunkSize = limiter.isEnabled() ? throttledChunkSize : transferChunkSize;
+        long throttleNanos = 0;
+        try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+                FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                        StandardOpenOption.WRITE)) {
+            long size = in.size();
+            long position = 0;
+            while (position < size) {
+                checkCancelled(cancelled);
+                long transferred = in.transferTo(position, Math.min(size - position, chunkSize), out);
+                if (transferred <= 0) {
+                    // the source got shorter, this is detected by the verification
+                    break;
+                }
+                position += transferred;
+                throttleNanos += throttle(transferred);
+            }
+        }
+        return throttleNanos;
+    }
+
+    private FileHash hashFile(Path file, MessageDigest[] digests, AtomicBoolean cancelled) throws IOException {
+        try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+            return hash(in, null, digests, cancelled);
+        }
+    }
+
+    /**
+     * Read the input channel and compute the checksum and the digests, the data is written into the output channel, if one is given
+     */
+    private FileHash hash(FileChannel in, FileChannel out, MessageDigest[] digests, AtomicBoolean cancelled) throws IOException {
+        // two buffers are used alternately, if the digests of the previous buffer are computed in the background
+        boolean parallelDigests = digests.length > 0 && in.size() >= parallelDigestThreshold;
+        ByteBuffer[] buffers = parallelDigests ? new ByteBuffer[] { ByteBuffer.allocate(bufferSize), ByteBuffer.allocate(bufferSize) }
+                : new ByteBuffer[] { ByteBuffer.allocate(bufferSize) };
+        int currentBuffer = 0;
+        ByteBuffer buffer = buffers[currentBuffer];
+        List<Future<?>> pendingDigests = new ArrayList<>(digests.length);
+        Checksum checksum = new CRC32C();
+        long size = 0;
+        long throttleNanos = 0;
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            checkCancelled(cancelled);
+            size += read;
+            throttleNanos += throttle(read);
+            buffer.flip();
+            checksum.update(buffer);
+            buffer.rewind();
+            if (out != null) {
+                while (buffer.hasRemaining()) {
+                    out.write(buffer);
+                }
+                buffer.rewind();
+            }
+            if (parallelDigests) {
+                // the other buffer can only be reused after its digests are complete
+                waitForDigests(pendingDigests);
+                for (MessageDigest digest : digests) {
+                    ByteBuffer chunk = buffer.duplicate();
+                    pendingDigests.add(digestExecutor.submit(() -> digest.update(chunk)));
+                }
+                currentBuffer = (currentBuffer + 1) % buffers.length;
+                buffer = buffers[currentBuffer];
+            } else {
+                for (MessageDigest digest : digests) {
+                    digest.update(buffer.duplicate());
+                }
+            }
+            buffer.clear();
+        }
+        waitForDigests(pendingDigests);
+
+        Map<String, String> digestValues = new LinkedHashMap<>();
+        for (int i = 0; i < digests.length; i++) {
+            digestValues.put(digestTypes.get(i).getType(), DigestType.toHex(digests[i].digest()));
+        }
+        return new FileHash(size, checksum.getValue(), digestValues, throttleNanos);
+    }
+
+    /**
+     * Wait until the bandwidth limiter allows to process the given number of bytes
+     *
+     * @return the time waited in ns
+     */
+    private long throttle(long bytes) throws IOException {
+        try {
+            return limiter.acquire(bytes);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Copy was cancelled");
+        }
+    }
+
+    private MessageDigest[] createDigests() {
+        MessageDigest[] digests = new MessageDigest[digestTypes.size()];
+        for (int i = 0; i < digests.length; i++) {
+            digests[i] = digestTypes.get(i).createDigest();
+        }
+        return digests;
+    }
+
+    private static void waitForDigests(List<Future<?>> pendingDigests) throws IOException {
+        try {
+            for (Future<?> future : pendingDigests) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Copy was cancelled");
+        } catch (ExecutionException e) {
+            throw new IOException("Digest cannot be computed", e.getCause());
+        } finally {
+            pendingDigests.clear();
+        }
+    }
+
+    private static void checkCancelled(AtomicBoolean cancelled) throws IOException {
+        if (cancelled.get() || Thread.currentThread().isInterrupted()) {
+            throw new IOException("Copy was cancelled");
+        }
+    }
+
+    @Override
+    public void close() {
+        // the digest threads are shared with other exports, digests of cancelled files finish with their current buffer
+        executor.shutdownNow();
+    }
+
+    private static class FileHash {
+        private final long size;
+        private final long checksum;
+        private final Map<String, String> digests;
+        private final long throttleNanos;
+
+        FileHash(long size, long checksum, Map<String, String> digests, long throttleNanos) {
+            this.size = size;
+            this.checksum = checksum;
+            this.digests = digests;
+            this.throttleNanos = throttleNanos;
+        }
+    }
+
+    /**
+     * Information about a single file that was copied and verified successfully
+     */
+    @Getter
+    public static class CopiedFile {
+        /** checksum of linked files, which are not read if no digests are configured */
+        public static final long unknownChecksum = -1;
+
+        private final String name;
+        private final long size;
+        private final long lastModified;
+        private final long checksum;
+        /** hex encoded digests, the key is the type of the digest */
+        private final Map<String, String> digests;
+
+        public CopiedFile(String name, long size, long lastModified, long checksum) {
+            this(name, size, lastModified, checksum, Collections.emptyMap());
+        }
+
+        public CopiedFile(String name, long size, long lastModified, long checksum, Map<String, String> digests) {
+            this.name = name;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.checksum = checksum;
+            this.digests = digests;
+        }
+
+        public boolean hasChecksum() {
+            return checksum != unknownChecksum;
+        }
+
+        /**
+         * Check if all given digests are known for this file
+         */
+        public boolean hasDigests(List<DigestType> digestTypes) {
+            for (DigestType digestType : digestTypes) {
+                if (!digests.containsKey(digestType.getType())) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Result of copying a folder. The time spent for copying, for verification and waiting for the bandwidth limiter is summed up over all threads.
+     */
+    @Getter
+    public static class CopyResult {
+        private final List<CopiedFile> files = new ArrayList<>();
+        private final LongAdder copyNanos = new LongAdder();
+        private final LongAdder verifyNanos = new LongAdder();
+        private final LongAdder linkedFiles = new LongAdder();
+        private final LongAdder throttleNanos = new LongAdder();
+        private Path failedFile;
+        private boolean checksumError;
+        private String errorMessage;
+
+        public boolean isSuccessful() {
+            return errorMessage == null;
+        }
+
+        public long getCopyNanos() {
+            return copyNanos.sum();
+        }
+
+        public long getVerifyNanos() {
+            return verifyNanos.sum();
+        }
+
+        /**
+         * Time spent waiting for the bandwidth limiter, it is included in the copy and verification times
+         */
+        public long getThrottleNanos() {
+            return throttleNanos.sum();
+        }
+
+        /**
+         * Number of files that were exported as hard link or reflink
+         */
+        public long getLinkedFiles() {
+            return linkedFiles.sum();
+        }
+
+        public long getBytes() {
+            long bytes = 0;
+            for (CopiedFile file : files) {
+                bytes += file.getSize();
+            }
+            return bytes;
+        }
+
+        void setFailure(Path failedFile, boolean checksumError, String errorMessage) {
+            this.failedFile = failedFile;
+            this.checksumError = checksumError;
+            this.errorMessage = errorMessage;
+        }
+    }
+
+    @Getter
+    private static class CopyException extends IOException {
+        private static final long serialVersionUID = 3186390281458014462L;
+        private final transient Path file;
+        private final boolean checksumError;
+
+        public CopyException(Path file, boolean checksumError, String message) {
+            super(message);
+            this.file = file;
+            this.checksumError = checksumError;
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package de.intranda.goobi.plugins;
+
+import org.apache.commons.configuration.XMLConfiguration;
+import org.apache.commons.lang3.StringUtils;
+
+import lombok.extern.log4j.Log4j;
+
+/**
+ * Layouts the export of an object can be written in.
+ */
+@Log4j
+public enum PackageMode {
+
+    /** write the files into the folders content and metadata of the object folder */
+    FOLDER,
+    /** write content and metadata into a single tar file next to the object folder */
+    TAR,
+    /** write a BagIt bag with manifest files, serialized as a single tar file next to the object folder */
+    BAGIT;
+
+    /**
+     * Files are written into a package instead of the object folder
+     */
+    public boolean isPackage() {
+        return this != FOLDER;
+    }
+
+    /**
+     * Read the mode from the mode attribute of the &lt;package&gt; element. The value can be overwritten per process with a process property.
+     *
+     * @param config
+     * @param override value of the process property, can be null
+     * @return the configured mode, FOLDER if nothing or an unknown value is configured
+     */
+    public static PackageMode fromConfig(XMLConfiguration config, String override) {
+        String value = StringUtils.isBlank(override) ? config.getString("package/@mode", "folder") : override;
+        for (PackageMode mode : values()) {
+            if (mode.name().equalsIgnoreCase(value.trim())) {
+                return mode;
+            }
+        }
+        log.warn("Unknown package mode " + value + ", using folder");
+        return FOLDER;
+    }
+}
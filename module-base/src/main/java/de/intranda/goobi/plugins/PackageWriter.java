@@ -0,0 +1,409 @@
+package de.intranda.goobi.plugins;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32C;
+import java.util.zip.Checksum;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.configuration.XMLConfiguration;
+
+import de.intranda.goobi.plugins.BandwidthLimiter.ThrottledOutputStream;
+import de.intranda.goobi.plugins.FileCopyEngine.CopiedFile;
+import lombok.Getter;
+import lombok.extern.log4j.Log4j;
+
+/**
+ * Writes the export of an object as a single tar file instead of many small files, optionally compressed with gzip.
+ *
+ * The files are read once and written sequentially into the package, checksum and digests are computed on the way. The package is written into
+ * a temporary file next to the final file and renamed when it is complete, so the ingest never sees an incomplete package.
+ *
+ * In mode TAR the package contains the folders &lt;objectId&gt;/content and &lt;objectId&gt;/metadata. In mode BAGIT the same folders are the
+ * payload of a BagIt bag in &lt;objectId&gt;/data, the bag contains a payload manifest and a tag manifest for each configured digest.
+ */
+@Log4j
+public class PackageWriter implements Closeable {
+
+    private static final int recordSize = 512;
+    // tar files are written in records of 20 blocks
+    private static final int blockingFactor = 20;
+    private static final long maxOctalSize = 077777777777L;
+    private static final String bagitFile = "bagit.txt";
+    private static final String bagInfoFile = "bag-info.txt";
+
+    private final PackageMode mode;
+    private final String rootFolder;
+    private final Path packageFile;
+    private final Path tempFile;
+    private final List<DigestType> digestTypes;
+    private final OutputStream out;
+    private final ThrottledOutputStream throttledOut;
+    private final byte[] buffer;
+    private final Map<DigestType, StringBuilder> manifests = new LinkedHashMap<>();
+    private final Map<DigestType, StringBuilder> tagManifests = new LinkedHashMap<>();
+    private long position = 0;
+    private boolean published = false;
+
+    @Getter
+    private long bytes = 0;
+    @Getter
+    private int files = 0;
+
+    /**
+     *
+     * @param mode TAR or BAGIT
+     * @param packageFile file to write
+     * @param rootFolder name of the top level folder inside of the package
+     * @param digestTypes digests to compute for each file, BAGIT needs at least one
+     * @param gzip compress the package with gzip
+     * @param compressionThreads number of threads for the compression, 1 uses a single gzip stream
+     * @param compressionLevel compression level from 1 (fast) to 9 (small)
+     * @param blockSize size of the blocks that are compressed on separate threads in bytes
+     * @param bufferSize size of the read buffer in bytes
+     * @throws IOException
+     */
+    public PackageWriter(PackageMode mode, Path packageFile, String rootFolder, List<DigestType> digestTypes, boolean gzip, int compressionThreads,
+            int compressionLevel, int blockSize, int bufferSize) throws IOException {
+        this(mode, packageFile, rootFolder, digestTypes, gzip, compressionThreads, compressionLevel, blockSize, bufferSize,
+                BandwidthLimiter.unlimited());
+    }
+
+    /**
+     *
+     * @param mode TAR or BAGIT
+     * @param packageFile file to write
+     * @param rootFolder name of the top level folder inside of the package
+     * @param digestTypes digests to compute for each file, BAGIT needs at least one
+     * @param gzip compress the package with gzip
+     * @param compressionThreads number of threads for the compression, 1 uses a single gzip stream
+     * @param compressionLevel compression level from 1 (fast) to 9 (small)
+     * @param blockSize size of the blocks that are compressed on separate threads in bytes
+     * @param bufferSize size of the read buffer in bytes
+     * @param limiter bandwidth limiter for writing the package, it limits the compressed data
+     * @throws IOException
+     */
+    public PackageWriter(PackageMode mode, Path packageFile, String rootFolder, List<DigestType> digestTypes, boolean gzip, int compressionThreads,
+            int compressionLevel, int blockSize, int bufferSize, BandwidthLimiter limiter) throws IOException {
+        this.mode = mode;
+        this.packageFile = packageFile;
+        this.rootFolder = rootFolder;
+        this.digestTypes = digestTypes;
+        buffer = new byte[Math.max(bufferSize, 4096)];
+        tempFile = packageFile.resolveSibling(packageFile.getFileName().toString() + ".tmp");
+        Files.createDirectories(packageFile.getParent());
+        throttledOut = new ThrottledOutputStream(Files.newOutputStream(tempFile), limiter);
+        OutputStream fileOut = new BufferedOutputStream(throttledOut, buffer.length);
+        if (!gzip) {
+            out = fileOut;
+        } else if (compressionThreads > 1) {
+            out = new ParallelGzipOutputStream(fileOut, compressionThreads, blockSize, compressionLevel);
+        } else {
+            out = new GZIPOutputStream(fileOut, buffer.length) {
+                {
+                    def.setLevel(compressionLevel);
+                }
+            };
+        }
+        if (mode == PackageMode.BAGIT) {
+            for (DigestType digestType : digestTypes) {
+                manifests.put(digestType, new StringBuilder());
+                tagManifests.put(digestType, new StringBuilder());
+            }
+            writeTagFile(bagitFile, "BagIt-Version: 1.0\nTag-File-Character-Encoding: UTF-8\n");
+        }
+    }
+
+    /**
+     * Read the settings from the &lt;package&gt;, &lt;checksums&gt;, &lt;copy&gt; and &lt;throttle&gt; elements of the plugin configuration. The
+     * package is written next to the object folder.
+     *
+     * @param config
+     * @param mode TAR or BAGIT
+     * @param targetFolder object folder of the exploded export
+     * @param objectId
+     * @return
+     * @throws IOException
+     */
+    public static PackageWriter fromConfig(XMLConfiguration config, PackageMode mode, Path targetFolder, String objectId) throws IOException {
+        boolean gzip = "gzip".equalsIgnoreCase(config.getString("package/@compression", "none").trim());
+        List<DigestType> digestTypes = new ArrayList<>(DigestType.fromConfig(config));
+        // a bag needs at least one payload manifest
+        if (mode == PackageMode.BAGIT && digestTypes.isEmpty()) {
+            digestTypes.add(DigestType.SHA256);
+        }
+        Path packageFile = targetFolder.resolveSibling(objectId + (gzip ? ".tar.gz" : ".tar"));
+        return new PackageWriter(mode, packageFile, objectId, digestTypes, gzip, config.getInt("package/@compressionThreads", 1),
+                config.getInt("package/@compressionLevel", 6), config.getInt("package/@blockSize", 1024) * 1024,
+                config.getInt("copy/@bufferSize", 1024) * 1024, BandwidthLimiter.getInstance(config));
+    }
+
+    public Path getPackageFile() {
+        return packageFile;
+    }
+
+    /**
+     * Time spent waiting for the bandwidth limiter in ms
+     */
+    public long getThrottleMillis() {
+        return throttledOut.getWaitNanos() / 1_000_000;
+    }
+
+    /**
+     * Add a file to the content folder of the package
+     *
+     * @param source
+     * @param lastModified modification date of the file or -1, if it is unknown
+     * @return size, checksum and digests of the file
+     * @throws IOException
+     */
+    public CopiedFile addContentFile(Path source, long lastModified) throws IOException {
+        return addPayloadFile("content/" + source.getFileName().toString(), source, lastModified);
+    }
+
+    /**
+     * Add a file to the metadata folder of the package
+     *
+     * @param source
+     * @return size, checksum and digests of the file
+     * @throws IOException
+     */
+    public CopiedFile addMetadataFile(Path source) throws IOException {
+        return addPayloadFile("metadata/" + source.getFileName().toString(), source, -1);
+    }
+
+    private CopiedFile addPayloadFile(String path, Path source, long lastModified) throws IOException {
+        String entryName = mode == PackageMode.BAGIT ? "data/" + path : path;
+        CopiedFile file = writeFile(entryName, source, lastModified);
+        bytes += file.getSize();
+        files++;
+        for (Map.Entry<DigestType, StringBuilder> manifest : manifests.entrySet()) {
+            manifest.getValue().append(file.getDigests().get(manifest.getKey().getType())).append("  ").append(encodePath(entryName)).append('\n');
+        }
+        return file;
+    }
+
+    private CopiedFile writeFile(String entryName, Path source, long lastModified) throws IOException {
+        try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ)) {
+            long size = in.size();
+            if (lastModified < 0) {
+                lastModified = Files.getLastModifiedTime(source).toMillis();
+            }
+            writeHeader(entryName, size, lastModified);
+            MessageDigest[] digests = createDigests();
+            Checksum checksum = new CRC32C();
+            ByteBuffer readBuffer = ByteBuffer.wrap(buffer);
+            long remaining = size;
+            while (remaining > 0) {
+                readBuffer.clear().limit((int) Math.min(buffer.length, remaining));
+                int read = in.read(readBuffer);
+                if (read < 0) {
+                    // the header contains the size already, the package cannot be completed
+                    throw new IOException(source + " got shorter while it was packaged");
+                }
+                checksum.update(buffer, 0, read);
+                for (MessageDigest digest : digests) {
+                    digest.update(buffer, 0, read);
+                }
+                write(buffer, 0, read);
+                remaining -= read;
+            }
+            pad(size);
+            return new CopiedFile(source.getFileName().toString(), size, lastModified, checksum.getValue(), getDigestValues(digests));
+        }
+    }
+
+    /**
+     * Write a tag file of the bag and add it to the tag manifests
+     */
+    private void writeTagFile(String name, String content) throws IOException {
+        byte[] data = writeText(name, content);
+        for (Map.Entry<DigestType, StringBuilder> tagManifest : tagManifests.entrySet()) {
+            MessageDigest digest = tagManifest.getKey().createDigest();
+            tagManifest.getValue().append(DigestType.toHex(digest.digest(data))).append("  ").append(name).append('\n');
+        }
+    }
+
+    private byte[] writeText(String name, String content) throws IOException {
+        byte[] data = content.getBytes(StandardCharsets.UTF_8);
+        writeHeader(name, data.length, System.currentTimeMillis());
+        write(data, 0, data.length);
+        pad(data.length);
+        return data;
+    }
+
+    private MessageDigest[] createDigests() {
+        MessageDigest[] digests = new MessageDigest[digestTypes.size()];
+        for (int i = 0; i < digests.length; i++) {
+            digests[i] = digestTypes.get(i).createDigest();
+        }
+        return digests;
+    }
+
+    private Map<String, String> getDigestValues(MessageDigest[] digests) {
+        Map<String, String> values = new LinkedHashMap<>();
+        for (int i = 0; i < digests.length; i++) {
+            values.put(digestTypes.get(i).getType(), DigestType.toHex(digests[i].digest()));
+        }
+        return values;
+    }
+
+    /**
+     * Paths in BagIt manifests must not contain line breaks, they are percent encoded
+     */
+    private static String encodePath(String path) {
+        return path.replace("%", "%25").replace("\r", "%0D").replace("\n", "%0A");
+    }
+
+    private void writeHeader(String entryName, long size, long lastModified) throws IOException {
+        write(createHeader(rootFolder + "/" + entryName, size, lastModified), 0, recordSize);
+    }
+
+    /**
+     * Create a ustar header for a regular file. Names longer than 100 bytes are split into prefix and name at a slash, sizes above 8 GB are stored
+     * in the binary format of GNU tar.
+     *
+     * @param name path of the file inside of the package
+     * @param size
+     * @param lastModified
+     * @return a header record of 512 bytes
+     * @throws IOException if the name cannot be stored in the header
+     */
+    static byte[] createHeader(String name, long size, long lastModified) throws IOException {
+        String prefix = "";
+        if (name.getBytes(StandardCharsets.UTF_8).length > 100) {
+            int index = name.indexOf('/');
+            while (index > 0 && name.substring(index + 1).getBytes(StandardCharsets.UTF_8).length > 100) {
+                index = name.indexOf('/', index + 1);
+            }
+            if (index <= 0 || name.substring(0, index).getBytes(StandardCharsets.UTF_8).length > 155) {
+                throw new IOException("File name is too long for a tar file: " + name);
+            }
+            prefix = name.substring(0, index);
+            name = name.substring(index + 1);
+        }
+
+        byte[] header = new byte[recordSize];
+        putString(header, 0, 100, name);
+        putOctal(header, 100, 8, 0644);
+        putOctal(header, 108, 8, 0);
+        putOctal(header, 116, 8, 0);
+        if (size <= maxOctalSize) {
+            putOctal(header, 124, 12, size);
+        } else {
+            header[124] = (byte) 0x80;
+            for (int i = 0; i < 8; i++) {
+                header[135 - i] = (byte) (size >>> (8 * i));
+            }
+        }
+        putOctal(header, 136, 12, lastModified / 1000);
+        header[156] = '0';
+        putString(header, 257, 6, "ustar");
+        putString(header, 263, 2, "00");
+        putString(header, 345, 155, prefix);
+
+        // the checksum is calculated with spaces in the checksum field
+        for (int i = 148; i < 156; i++) {
+            header[i] = ' ';
+        }
+        long checksum = 0;
+        for (byte b : header) {
+            checksum += b & 0xff;
+        }
+        putOctal(header, 148, 7, checksum);
+        return header;
+    }
+
+    private static void putString(byte[] header, int offset, int length, String value) {
+        byte[] data = value.getBytes(StandardCharsets.UTF_8);
+        System.arraycopy(data, 0, header, offset, Math.min(data.length, length));
+    }
+
+    /**
+     * Write the value as zero padded octal number, terminated by a NUL byte
+     */
+    private static void putOctal(byte[] header, int offset, int length, long value) {
+        String octal = Long.toOctalString(value);
+        int digits = length - 1;
+        for (int i = 0; i < digits; i++) {
+            int index = octal.length() - digits + i;
+            header[offset + i] = (byte) (index < 0 ? '0' : octal.charAt(index));
+        }
+        header[offset + digits] = 0;
+    }
+
+    private void pad(long size) throws IOException {
+        int remainder = (int) (size % recordSize);
+        if (remainder > 0) {
+            write(new byte[recordSize - remainder], 0, recordSize - remainder);
+        }
+    }
+
+    private void write(byte[] data, int offset, int length) throws IOException {
+        out.write(data, offset, length);
+        position += length;
+    }
+
+    /**
+     * Complete the package and rename it to the final name. An existing package of the object is replaced.
+     *
+     * @throws IOException
+     */
+    public void publish() throws IOException {
+        if (mode == PackageMode.BAGIT) {
+            writeTagFile(bagInfoFile, "Bagging-Date: " + LocalDate.now() + "\nPayload-Oxum: " + bytes + "." + files + "\nExternal-Identifier: "
+                    + rootFolder + "\n");
+            for (Map.Entry<DigestType, StringBuilder> manifest : manifests.entrySet()) {
+                writeTagFile("manifest-" + manifest.getKey().getType() + ".txt", manifest.getValue().toString());
+            }
+            // the tag manifests don't list themselves
+            for (Map.Entry<DigestType, StringBuilder> tagManifest : tagManifests.entrySet()) {
+                writeText("tagmanifest-" + tagManifest.getKey().getType() + ".txt", tagManifest.getValue().toString());
+            }
+        }
+        // end of archive: two empty blocks, filled up to a complete record
+        long endOfArchive = position + 2 * recordSize;
+        long recordBytes = (long) recordSize * blockingFactor;
+        long paddedLength = (endOfArchive + recordBytes - 1) / recordBytes * recordBytes;
+        write(new byte[(int) (paddedLength - position)], 0, (int) (paddedLength - position));
+        out.close();
+        Files.move(tempFile, packageFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        published = true;
+        log.debug("Wrote package " + packageFile + " with " + files + " files");
+    }
+
+    /**
+     * Remove the temporary file, if the package was not published
+     */
+    @Override
+    public void close() {
+        if (published) {
+            return;
+        }
+        try {
+            out.close();
+        } catch (IOException e) {
+            log.debug("Package " + tempFile + " cannot be closed: " + e.getMessage());
+        }
+        try {
+            Files.deleteIfExists(tempFile);
+        } catch (IOException e) {
+            log.warn("Incomplete package " + tempFile + " cannot be deleted", e);
+        }
+    }
+}
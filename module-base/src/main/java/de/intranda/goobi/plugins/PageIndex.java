@@ -0,0 +1,195 @@
+package de.intranda.goobi.plugins;
+
+import java.io.IOException;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import lombok.Getter;
+
+/**
+ * Files of the image, ALTO and PDF folders of a process, read with a single directory scan per folder.
+ *
+ * The scan records size and modification date of each file, so that the later phases of the export don't need to access the file system again
+ * for this information. The files are joined into pages by their name without extension. A page can miss some of its files, files without image
+ * become pages of their own.
+ */
+public class PageIndex {
+
+    @Getter
+    private final List<IndexedFile> imageFiles;
+    @Getter
+    private final List<IndexedFile> altoFiles;
+    @Getter
+    private final List<IndexedFile> pdfFiles;
+    @Getter
+    private final List<Page> pages;
+
+    /**
+     *
+     * @param imageFiles files of the image folder or null, if the folder does not exist
+     * @param altoFiles files of the ALTO folder or null, if the folder does not exist
+     * @param pdfFiles files of the PDF folder or null, if the folder does not exist
+     */
+    public PageIndex(List<IndexedFile> imageFiles, List<IndexedFile> altoFiles, List<IndexedFile> pdfFiles) {
+        this.imageFiles = imageFiles;
+        this.altoFiles = altoFiles;
+        this.pdfFiles = pdfFiles;
+        pages = joinPages();
+    }
+
+    /**
+     * Scan the three source folders of a process
+     *
+     * @param imageFolder
+     * @param altoFolder
+     * @param pdfFolder
+     * @return
+     * @throws IOException
+     */
+    public static PageIndex build(Path imageFolder, Path altoFolder, Path pdfFolder) throws IOException {
+        return new PageIndex(listFiles(imageFolder), listFiles(altoFolder), listFiles(pdfFolder));
+    }
+
+    /**
+     * Create an index from file names only, size and modification date of the files are unknown
+     *
+     * @param imageFileNames
+     * @param altoFileNames
+     * @param pdfFileNames
+     * @return
+     */
+    public static PageIndex fromFileNames(List<String> imageFileNames, List<String> altoFileNames, List<String> pdfFileNames) {
+        return new PageIndex(toIndexedFiles(imageFileNames), toIndexedFiles(altoFileNames), toIndexedFiles(pdfFileNames));
+    }
+
+    private static List<IndexedFile> toIndexedFiles(List<String> fileNames) {
+        if (fileNames == null) {
+            return null;
+        }
+        List<IndexedFile> files = new ArrayList<>(fileNames.size());
+        for (String fileName : fileNames) {
+            files.add(new IndexedFile(fileName, -1, -1));
+        }
+        return files;
+    }
+
+    /**
+     * List all regular, not hidden files of the folder. The attributes are read together with the directory entries.
+     *
+     * @param folder
+     * @return the files sorted by name or null, if the folder does not exist
+     */
+    public static List<IndexedFile> listFiles(Path folder) throws IOException {
+        if (!Files.isDirectory(folder)) {
+            return null;
+        }
+        List<IndexedFile> files = new ArrayList<>();
+        Files.walkFileTree(folder, EnumSet.noneOf(FileVisitOption.class), 1, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                String name = file.getFileName().toString();
+                if (attrs.isRegularFile() && !name.startsWith(".")) {
+                    files.add(new IndexedFile(name, attrs.size(), attrs.lastModifiedTime().toMillis()));
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        files.sort(Comparator.comparing(IndexedFile::getName));
+        return files;
+    }
+
+    private List<Page> joinPages() {
+        Map<String, Page> pagesByName = new LinkedHashMap<>();
+        if (imageFiles != null) {
+            for (IndexedFile file : imageFiles) {
+                getPage(pagesByName, file).image = file;
+            }
+        }
+        int imagePages = pagesByName.size();
+        if (altoFiles != null) {
+            for (IndexedFile file : altoFiles) {
+                getPage(pagesByName, file).alto = file;
+            }
+        }
+        if (pdfFiles != null) {
+            for (IndexedFile file : pdfFiles) {
+                getPage(pagesByName, file).pdf = file;
+            }
+        }
+        List<Page> result = new ArrayList<>(pagesByName.values());
+        // pages without image are added at the end, move them to the right position
+        if (result.size() > imagePages) {
+            result.sort(Comparator.comparing(Page::getName));
+        }
+        return Collections.unmodifiableList(result);
+    }
+
+    private static Page getPage(Map<String, Page> pagesByName, IndexedFile file) {
+        return pagesByName.computeIfAbsent(getBaseName(file.getName()), Page::new);
+    }
+
+    private static String getBaseName(String fileName) {
+        int index = fileName.lastIndexOf('.');
+        return index > 0 ? fileName.substring(0, index) : fileName;
+    }
+
+    /**
+     * Check if any page has an ALTO file
+     */
+    public boolean hasOcrFiles() {
+        return altoFiles != null && !altoFiles.isEmpty();
+    }
+
+    public static List<String> getFileNames(List<IndexedFile> files) {
+        if (files == null) {
+            return null;
+        }
+        List<String> names = new ArrayList<>(files.size());
+        for (IndexedFile file : files) {
+            names.add(file.getName());
+        }
+        return names;
+    }
+
+    /**
+     * File found during the scan of a folder, size and modification date are -1 if they are unknown
+     */
+    @Getter
+    public static class IndexedFile {
+        private final String name;
+        private final long size;
+        private final long lastModified;
+
+        public IndexedFile(String name, long size, long lastModified) {
+            this.name = name;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+    }
+
+    /**
+     * Files of a single page, each of them can be null
+     */
+    @Getter
+    public static class Page {
+        private final String name;
+        private IndexedFile image;
+        private IndexedFile alto;
+        private IndexedFile pdf;
+
+        private Page(String name) {
+            this.name = name;
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package de.intranda.goobi.plugins;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Gzip compression on several threads.
+ *
+ * The data is split into blocks, each block is compressed independently into a complete gzip member. The members are written in their original
+ * order. A sequence of gzip members is a valid gzip file, it can be read by gzip, tar and the GZIPInputStream of java. The compression ratio is
+ * slightly lower than with a single stream, because the blocks cannot refer to the data of the previous block.
+ */
+public class ParallelGzipOutputStream extends OutputStream {
+
+    private final OutputStream out;
+    private final int level;
+    private final int blockSize;
+    private final int maxPendingBlocks;
+    private final ExecutorService executor;
+    private final Deque<Future<byte[]>> pendingBlocks = new ArrayDeque<>();
+    private byte[] block;
+    private int position = 0;
+    private boolean empty = true;
+    private boolean closed = false;
+
+    /**
+     *
+     * @param out stream to write the compressed data into
+     * @param threads number of blocks to compress at the same time
+     * @param blockSize size of the uncompressed blocks in bytes
+     * @param level compression level from 1 (fast) to 9 (small)
+     */
+    public ParallelGzipOutputStream(OutputStream out, int threads, int blockSize, int level) {
+        this.out = out;
+        this.level = level;
+        this.blockSize = Math.max(blockSize, 64 * 1024);
+        // limit the memory for blocks that are compressed or waiting to be written
+        maxPendingBlocks = Math.max(threads, 1) * 2;
+        block = new byte[this.blockSize];
+        AtomicInteger counter = new AtomicInteger();
+        executor = Executors.newFixedThreadPool(Math.max(threads, 1), r -> {
+            Thread thread = new Thread(r, "stanford-export-gzip-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        block[position++] = (byte) b;
+        if (position == blockSize) {
+            submitBlock();
+        }
+    }
+
+    @Override
+    public void write(byte[] data, int offset, int length) throws IOException {
+        while (length > 0) {
+            int count = Math.min(length, blockSize - position);
+            System.arraycopy(data, offset, block, position, count);
+            position += count;
+            offset += count;
+            length -= count;
+            if (position == blockSize) {
+                submitBlock();
+            }
+        }
+    }
+
+    private void submitBlock() throws IOException {
+        byte[] data = block;
+        int length = position;
+        pendingBlocks.add(executor.submit(() -> compress(data, length)));
+        empty = false;
+        block = new byte[blockSize];
+        position = 0;
+        while (pendingBlocks.size() >= maxPendingBlocks) {
+            writeNextBlock();
+        }
+    }
+
+    private byte[] compress(byte[] data, int length) throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(length / 2 + 64);
+        try (GZIPOutputStream gzip = new GZIPOutputStream(compressed) {
+            {
+                def.setLevel(level);
+            }
+        }) {
+            gzip.write(data, 0, length);
+        }
+        return compressed.toByteArray();
+    }
+
+    private void writeNextBlock() throws IOException {
+        try {
+            out.write(pendingBlocks.poll().get());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Compression was interrupted");
+        } catch (ExecutionException e) {
+            throw new IOException("Compression failed", e.getCause());
+        }
+    }
+
+    /**
+     * Compress the data written so far and write it into the underlying stream. Each flush ends a gzip member, so it should be called rarely.
+     */
+    @Override
+    public void flush() throws IOException {
+        if (position > 0) {
+            submitBlock();
+        }
+        while (!pendingBlocks.isEmpty()) {
+            writeNextBlock();
+        }
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            // a gzip file needs at least one member
+            if (empty) {
+                submitBlock();
+            }
+            flush();
+        } finally {
+            executor.shutdownNow();
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,309 @@
+package de.intranda.goobi.plugins;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+import java.util.zip.CheckedOutputStream;
+
+import org.apache.commons.configuration.XMLConfiguration;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.pdfbox.io.IOUtils;
+import org.apache.pdfbox.io.MemoryUsageSetting;
+import org.apache.pdfbox.io.RandomAccessStreamCache.StreamCacheCreateFunction;
+import org.apache.pdfbox.io.ScratchFile;
+import org.apache.pdfbox.multipdf.PDFMergerUtility;
+
+import de.intranda.goobi.plugins.BandwidthLimiter.ThrottledOutputStream;
+import de.intranda.goobi.plugins.FileCopyEngine.CopiedFile;
+import lombok.Getter;
+import lombok.extern.log4j.Log4j;
+
+/**
+ * Merges single page PDF files into one PDF file with a limited amount of heap memory.
+ *
+ * Streams are kept in main memory up to the configured limit and are written into temporary files afterwards. Large volumes are merged in chunks,
+ * the intermediate files are merged again until only one file remains. The result is written into a temporary file and moved into place, the
+ * checksums of the result are computed while it is written. Writing the result takes its bytes from the shared bandwidth limiter, the intermediate
+ * files are only written into the local temporary folder and are not limited. An interrupted merge stops before the next chunk or write.
+ */
+@Log4j
+public class PdfMerger {
+
+    private final long maxMainMemoryBytes;
+    private final int chunkSize;
+    private final Path tempFolder;
+    private final BandwidthLimiter limiter;
+
+    /**
+     *
+     * @param maxMainMemoryBytes memory that can be used for the streams of a single merge, use -1 to keep everything in memory
+     * @param chunkSize maximum number of files that are merged at once
+     * @param tempFolder folder for temporary files, use null for the default temporary folder
+     */
+    public PdfMerger(long maxMainMemoryBytes, int chunkSize, Path tempFolder) {
+        this(maxMainMemoryBytes, chunkSize, tempFolder, BandwidthLimiter.unlimited());
+    }
+
+    /**
+     *
+     * @param maxMainMemoryBytes memory that can be used for the streams of a single merge, use -1 to keep everything in memory
+     * @param chunkSize maximum number of files that are merged at once
+     * @param tempFolder folder for temporary files, use null for the default temporary folder
+     * @param limiter bandwidth limiter for writing the merged file
+     */
+    public PdfMerger(long maxMainMemoryBytes, int chunkSize, Path tempFolder, BandwidthLimiter limiter) {
+        this.limiter = limiter;
+        this.maxMainMemoryBytes = maxMainMemoryBytes;
+        this.chunkSize = Math.max(chunkSize, 2);
+        this.tempFolder = tempFolder;
+    }
+
+    /**
+     * Read the settings from the &lt;pdfMerge&gt; and &lt;throttle&gt; elements of the plugin configuration
+     *
+     * @param config
+     * @return
+     */
+    public static PdfMerger fromConfig(XMLConfiguration config) {
+        long maxMainMemory = config.getLong("pdfMerge/@maxMainMemory", 64);
+        String tempFolder = config.getString("pdfMerge/@tempFolder", "");
+        return new PdfMerger(maxMainMemory < 0 ? -1 : maxMainMemory * 1024 * 1024, config.getInt("pdfMerge/@chunkSize", 500),
+                StringUtils.isBlank(tempFolder) ? null : Paths.get(tempFolder), BandwidthLimiter.getInstance(config));
+    }
+
+    /**
+     * Merge the given files into the destination file
+     *
+     * @param sourceFiles
+     * @param destination
+     * @return statistics about the merge
+     * @throws IOException
+     */
+    public MergeResult merge(List<Path> sourceFiles, Path destination) throws IOException {
+        return merge(sourceFiles, destination, Collections.emptyList());
+    }
+
+    /**
+     * Merge the given files into the destination file and compute the given digests of the result
+     *
+     * @param sourceFiles
+     * @param destination
+     * @param digestTypes
+     * @return statistics about the merge
+     * @throws IOException
+     */
+    public MergeResult merge(List<Path> sourceFiles, Path destination, List<DigestType> digestTypes) throws IOException {
+        long start = System.currentTimeMillis();
+        HeapSampler heapSampler = HeapSampler.start();
+
+        Path workFolder = tempFolder == null ? Files.createTempDirectory("stanford-pdf-") : Files.createTempDirectory(tempFolder, "stanford-pdf-");
+        Path tempDestination = destination.resolveSibling(destination.getFileName().toString() + ".tmp");
+        CopiedFile mergedFile;
+        long throttleNanos;
+        try {
+            List<Path> files = sourceFiles;
+            int level = 0;
+            // merge hierarchically until the remaining files fit into a single merge
+            while (files.size() > chunkSize) {
+                List<Path> intermediateFiles = new ArrayList<>();
+                for (int index = 0; index < files.size(); index += chunkSize) {
+                    checkCancelled();
+                    Path intermediate = workFolder.resolve("level" + level + "_" + intermediateFiles.size() + ".pdf");
+                    mergeFiles(files.subList(index, Math.min(index + chunkSize, files.size())), intermediate);
+                    intermediateFiles.add(intermediate);
+                    heapSampler.sample();
+                }
+                if (level > 0) {
+                    for (Path file : files) {
+                        Files.deleteIfExists(file);
+                    }
+                }
+                files = intermediateFiles;
+                level++;
+            }
+            ThrottledOutputStream fileStream = new ThrottledOutputStream(Files.newOutputStream(tempDestination), limiter);
+            mergedFile = mergeFinalFile(files, fileStream, tempDestination, destination, digestTypes);
+            throttleNanos = fileStream.getWaitNanos();
+        } finally {
+            heapSampler.close();
+            Files.deleteIfExists(tempDestination);
+            deleteFolder(workFolder);
+        }
+        return new MergeResult(sourceFiles.size(), System.currentTimeMillis() - start, heapSampler.getMaximum(), mergedFile,
+                throttleNanos / 1_000_000);
+    }
+
+    /**
+     * Write the last merge into the temporary file and compute the checksum and the digests of the written stream, then move the file into place
+     */
+    private CopiedFile mergeFinalFile(List<Path> sourceFiles, OutputStream tempStream, Path tempDestination, Path destination,
+            List<DigestType> digestTypes) throws IOException {
+        CRC32C checksum = new CRC32C();
+        List<MessageDigest> digests = new ArrayList<>();
+        // the buffer is placed above the limiter, so the limiter is not called for every single byte
+        try (OutputStream fileStream = new BufferedOutputStream(tempStream)) {
+            OutputStream out = new CheckedOutputStream(fileStream, checksum);
+            for (DigestType digestType : digestTypes) {
+                MessageDigest digest = digestType.createDigest();
+                digests.add(digest);
+                out = new DigestOutputStream(out, digest);
+            }
+            PDFMergerUtility merger = new PDFMergerUtility();
+            merger.setDestinationStream(out);
+            for (Path file : sourceFiles) {
+                merger.addSource(file.toFile());
+            }
+            merger.mergeDocuments(getStreamCache());
+            out.flush();
+        }
+        Files.move(tempDestination, destination, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        Map<String, String> digestValues = new LinkedHashMap<>();
+        for (int i = 0; i < digests.size(); i++) {
+            digestValues.put(digestTypes.get(i).getType(), DigestType.toHex(digests.get(i).digest()));
+        }
+        return new CopiedFile(destination.getFileName().toString(), Files.size(destination), Files.getLastModifiedTime(destination).toMillis(),
+                checksum.getValue(), digestValues);
+    }
+
+    private void mergeFiles(List<Path> sourceFiles, Path destination) throws IOException {
+        PDFMergerUtility merger = new PDFMergerUtility();
+        merger.setDestinationFileName(destination.toString());
+        for (Path file : sourceFiles) {
+            merger.addSource(file.toFile());
+        }
+        merger.mergeDocuments(getStreamCache());
+    }
+
+    /**
+     * Stop the merge, if the thread was interrupted because another part of the export failed
+     */
+    private static void checkCancelled() throws InterruptedIOException {
+        if (Thread.currentThread().isInterrupted()) {
+            throw new InterruptedIOException("PDF merge was cancelled");
+        }
+    }
+
+    private StreamCacheCreateFunction getStreamCache() {
+        if (maxMainMemoryBytes < 0) {
+            return IOUtils.createMemoryOnlyStreamCache();
+        }
+        MemoryUsageSetting setting = maxMainMemoryBytes == 0 ? MemoryUsageSetting.setupTempFileOnly()
+                : MemoryUsageSetting.setupMixed(maxMainMemoryBytes);
+        MemoryUsageSetting memoryUsageSetting = tempFolder == null ? setting : setting.setTempDir(tempFolder.toFile());
+        return () -> new ScratchFile(memoryUsageSetting);
+    }
+
+    /**
+     * Samples the used heap while a merge is running. The peak values of the memory pools are not reset, they belong to the whole JVM and are read
+     * by other monitoring as well. All running merges are sampled by a single thread.
+     */
+    private static class HeapSampler implements AutoCloseable {
+
+        private static final long sampleInterval = 50;
+        private static final MemoryMXBean memoryBean = ManagementFactory.getMemoryMXBean();
+        private static final Set<HeapSampler> running = ConcurrentHashMap.newKeySet();
+        private static ScheduledExecutorService sampler;
+
+        private final AtomicLong maximum = new AtomicLong();
+
+        static HeapSampler start() {
+            HeapSampler heapSampler = new HeapSampler();
+            heapSampler.sample();
+            running.add(heapSampler);
+            startSampler();
+            return heapSampler;
+        }
+
+        private static synchronized void startSampler() {
+            if (sampler == null) {
+                sampler = Executors.newSingleThreadScheduledExecutor(r -> {
+                    Thread thread = new Thread(r, "stanford-export-heap-sampler");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+                sampler.scheduleAtFixedRate(() -> running.forEach(HeapSampler::sample), sampleInterval, sampleInterval, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        void sample() {
+            long used = memoryBean.getHeapMemoryUsage().getUsed();
+            maximum.accumulateAndGet(used, Math::max);
+        }
+
+        long getMaximum() {
+            return maximum.get();
+        }
+
+        @Override
+        public void close() {
+            sample();
+            running.remove(this);
+        }
+    }
+
+    private static void deleteFolder(Path folder) {
+        try {
+            try (Stream<Path> stream = Files.list(folder)) {
+                for (Path file : (Iterable<Path>) stream::iterator) {
+                    Files.deleteIfExists(file);
+                }
+            }
+            Files.deleteIfExists(folder);
+        } catch (IOException e) {
+            log.warn("Temporary folder " + folder + " could not be deleted", e);
+        }
+    }
+
+    /**
+     * Statistics about a merge
+     */
+    @Getter
+    public static class MergeResult {
+        private final int files;
+        private final long durationMillis;
+        /**
+         * highest used heap sampled while the merge was running. The heap belongs to the whole JVM, so merges and exports running at the same
+         * time are included.
+         */
+        private final long sampledHeapBytes;
+        /** size, checksum and digests of the merged file */
+        private final CopiedFile mergedFile;
+        /** time spent waiting for the bandwidth limiter, it is included in the duration */
+        private final long throttleMillis;
+
+        public MergeResult(int files, long durationMillis, long sampledHeapBytes, CopiedFile mergedFile) {
+            this(files, durationMillis, sampledHeapBytes, mergedFile, 0);
+        }
+
+        public MergeResult(int files, long durationMillis, long sampledHeapBytes, CopiedFile mergedFile, long throttleMillis) {
+            this.files = files;
+            this.durationMillis = durationMillis;
+            this.sampledHeapBytes = sampledHeapBytes;
+            this.mergedFile = mergedFile;
+            this.throttleMillis = throttleMillis;
+        }
+    }
+}
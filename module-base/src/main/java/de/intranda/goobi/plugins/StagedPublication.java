@@ -0,0 +1,311 @@
+package de.intranda.goobi.plugins;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystemException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+
+import org.apache.commons.configuration.XMLConfiguration;
+import org.apache.commons.lang3.StringUtils;
+
+import de.sub.goobi.config.ConfigurationHelper;
+import lombok.extern.log4j.Log4j;
+
+/**
+ * Builds the export of an object in a staging folder next to the final folder and publishes it with a rename, so that consumers of the export
+ * folder never see an incomplete tree.
+ *
+ * The staging folder is seeded with hard links to the files of the current export, so that unchanged files don't need to be copied again.
+ *
+ * By default the final folder is a symbolic link to a version folder &lt;objectId&gt;.v&lt;timestamp&gt;. To publish a new version, the staging
+ * folder becomes the next version folder and a new link replaces the old one with a single rename, so consumers see either the old or the new
+ * version at any time. The version that was replaced is kept until the next publication, so readers that opened it before can finish. If the
+ * final folder is still a plain folder from an earlier export, it is replaced once as described below.
+ *
+ * Without links, the current folder is renamed to &lt;objectId&gt;.previous and the staging folder is renamed to the final name. Between the two
+ * renames the final folder does not exist. The previous version is only deleted after this was successful and restored if the rename failed.
+ *
+ * Each staging folder is registered in a registry folder, staging folders left over from an aborted run are removed on startup.
+ */
+@Log4j
+public class StagedPublication {
+
+    private static final String stagingSuffix = ".staging";
+    private static final String previousSuffix = ".previous";
+    private static final String versionSuffix = ".v";
+    private static final String linkSuffix = ".link";
+    private static final String[] subFolders = { "content", "metadata" };
+
+    private final boolean enabled;
+    private final boolean resumable;
+    private final boolean symlink;
+    private final Path targetFolder;
+    private final Path stagingFolder;
+    private final Path previousFolder;
+    private final Path registryFile;
+    private boolean published = false;
+
+    private StagedPublication(boolean enabled, boolean resumable, boolean symlink, Path targetFolder, Path registryFolder) {
+        this.enabled = enabled;
+        this.resumable = resumable;
+        this.symlink = symlink;
+        this.targetFolder = targetFolder;
+        stagingFolder = targetFolder.resolveSibling(targetFolder.getFileName().toString() + stagingSuffix);
+        previousFolder = targetFolder.resolveSibling(targetFolder.getFileName().toString() + previousSuffix);
+        registryFile = registryFolder.resolve(targetFolder.getFileName().toString() + stagingSuffix);
+    }
+
+    /**
+     * Read the settings from the &lt;staging&gt; element of the plugin configuration
+     *
+     * @param config
+     * @param targetFolder final folder of the object
+     * @return
+     */
+    public static StagedPublication fromConfig(XMLConfiguration config, Path targetFolder) {
+        return new StagedPublication(config.getBoolean("staging/@enabled", false), config.getBoolean("checkpoint/@enabled", false),
+                config.getBoolean("staging/@symlink", true), targetFolder, getRegistryFolder(config));
+    }
+
+    private static Path getRegistryFolder(XMLConfiguration config) {
+        String folder = config.getString("staging/@registryFolder", "");
+        return StringUtils.isBlank(folder) ? Paths.get(ConfigurationHelper.getInstance().getTemporaryFolder(), "stanford_export_staging")
+                : Paths.get(folder);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Create the folder the export is written into. Without staging this is the final folder.
+     *
+     * @return the folder to write the export into
+     * @throws IOException
+     */
+    public Path prepare() throws IOException {
+        if (!enabled) {
+            return targetFolder;
+        }
+        Files.createDirectories(registryFile.getParent());
+        Files.writeString(registryFile, targetFolder.toString(), StandardCharsets.UTF_8);
+        if (resumable && Files.isDirectory(stagingFolder)) {
+            // continue the export that failed before
+            log.info("Resuming export in staging folder " + stagingFolder);
+            return stagingFolder;
+        }
+        // remove what is left from an earlier attempt
+        deleteFolder(stagingFolder);
+        for (String subFolder : subFolders) {
+            Files.createDirectories(stagingFolder.resolve(subFolder));
+            seed(targetFolder.resolve(subFolder), stagingFolder.resolve(subFolder));
+        }
+        return stagingFolder;
+    }
+
+    /**
+     * Link all files of the current export into the staging folder. Files that cannot be linked are exported again.
+     */
+    private static void seed(Path sourceFolder, Path stagingSubFolder) throws IOException {
+        if (!Files.isDirectory(sourceFolder)) {
+            return;
+        }
+        int linked = 0;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(sourceFolder, Files::isRegularFile)) {
+            for (Path file : stream) {
+                try {
+                    Files.createLink(stagingSubFolder.resolve(file.getFileName()), file);
+                    linked++;
+                } catch (FileSystemException | UnsupportedOperationException e) {
+                    log.warn("Files of " + sourceFolder + " cannot be linked into the staging folder, they are exported again: " + e.getMessage());
+                    return;
+                }
+            }
+        }
+        log.debug("Linked " + linked + " files of " + sourceFolder + " into the staging folder");
+    }
+
+    /**
+     * Replace the final folder with the staging folder. If the rename fails, the previous version is restored.
+     *
+     * @throws IOException
+     */
+    public void publish() throws IOException {
+        if (!enabled) {
+            published = true;
+            return;
+        }
+        if (symlink && publishLink()) {
+            return;
+        }
+        deleteFolder(previousFolder);
+        boolean replaced = false;
+        if (Files.exists(targetFolder)) {
+            Files.move(targetFolder, previousFolder, StandardCopyOption.ATOMIC_MOVE);
+            replaced = true;
+        }
+        try {
+            Files.move(stagingFolder, targetFolder, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            if (replaced) {
+                Files.move(previousFolder, targetFolder, StandardCopyOption.ATOMIC_MOVE);
+            }
+            throw e;
+        }
+        published = true;
+        Files.deleteIfExists(registryFile);
+        if (replaced) {
+            deleteFolder(previousFolder);
+        }
+    }
+
+    /**
+     * Make the staging folder the next version folder and point the final folder to it by renaming a new link over the old one
+     *
+     * @return false, if the file system does not support links and the folder must be renamed instead
+     */
+    private boolean publishLink() throws IOException {
+        String name = targetFolder.getFileName().toString();
+        long version = System.currentTimeMillis();
+        Path versionFolder = targetFolder.resolveSibling(name + versionSuffix + version);
+        // publications within the same millisecond must not use the same version folder
+        while (Files.exists(versionFolder, LinkOption.NOFOLLOW_LINKS)) {
+            versionFolder = targetFolder.resolveSibling(name + versionSuffix + ++version);
+        }
+        Path link = targetFolder.resolveSibling(name + linkSuffix);
+        Files.deleteIfExists(link);
+        try {
+            // the link is relative, so the export can be mounted at a different path
+            Files.createSymbolicLink(link, versionFolder.getFileName());
+        } catch (IOException | UnsupportedOperationException e) {
+            log.warn("Cannot create a symbolic link for " + targetFolder + ", renaming the folder instead: " + e.getMessage());
+            return false;
+        }
+        Path replacedVersion = Files.isSymbolicLink(targetFolder) ? Files.readSymbolicLink(targetFolder).getFileName() : null;
+        Files.move(stagingFolder, versionFolder, StandardCopyOption.ATOMIC_MOVE);
+
+        // a plain folder of an earlier export cannot be replaced by a link in a single step
+        boolean replaced = false;
+        if (Files.isDirectory(targetFolder, LinkOption.NOFOLLOW_LINKS)) {
+            deleteFolder(previousFolder);
+            Files.move(targetFolder, previousFolder, StandardCopyOption.ATOMIC_MOVE);
+            replaced = true;
+        }
+        try {
+            Files.move(link, targetFolder, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            if (replaced) {
+                Files.move(previousFolder, targetFolder, StandardCopyOption.ATOMIC_MOVE);
+            }
+            Files.move(versionFolder, stagingFolder, StandardCopyOption.ATOMIC_MOVE);
+            Files.deleteIfExists(link);
+            throw e;
+        }
+        published = true;
+        Files.deleteIfExists(registryFile);
+        if (replaced) {
+            deleteFolder(previousFolder);
+        }
+
+        // remove all older versions except the one that was just replaced
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(targetFolder.getParent(), name + versionSuffix + "*")) {
+            for (Path folder : stream) {
+                if (!folder.getFileName().equals(versionFolder.getFileName()) && !folder.getFileName().equals(replacedVersion)) {
+                    deleteFolder(folder);
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Remove the staging folder, if the export was not published. If exports can be resumed, the folder is kept for the next attempt.
+     */
+    public void discard() {
+        if (!enabled || published) {
+            return;
+        }
+        if (resumable) {
+            log.info("Keeping staging folder " + stagingFolder + " to resume the export");
+            return;
+        }
+        try {
+            deleteFolder(stagingFolder);
+            Files.deleteIfExists(registryFile);
+        } catch (IOException e) {
+            log.error("Staging folder " + stagingFolder + " cannot be removed", e);
+        }
+    }
+
+    /**
+     * Remove the staging folders of exports that were aborted before the last start of Goobi. If exports can be resumed, only staging folders
+     * that were not used for the configured number of hours are removed. If the final folder is missing because the rename was interrupted, the
+     * previous version is restored.
+     *
+     * @param config
+     */
+    public static void cleanUpStale(XMLConfiguration config) {
+        if (!config.getBoolean("staging/@enabled", false)) {
+            return;
+        }
+        Path registryFolder = getRegistryFolder(config);
+        if (!Files.isDirectory(registryFolder)) {
+            return;
+        }
+        long startTime = ManagementFactory.getRuntimeMXBean().getStartTime();
+        if (config.getBoolean("checkpoint/@enabled", false)) {
+            startTime = Math.min(startTime, System.currentTimeMillis() - config.getLong("checkpoint/@maxAge", 168) * 60 * 60 * 1000);
+        }
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(registryFolder, "*" + stagingSuffix)) {
+            for (Path file : stream) {
+                // registrations of the current run belong to running exports
+                if (Files.getLastModifiedTime(file).toMillis() >= startTime) {
+                    continue;
+                }
+                StagedPublication publication = new StagedPublication(true, false, false,
+                        Paths.get(Files.readString(file, StandardCharsets.UTF_8).trim()), registryFolder);
+                if (!Files.exists(publication.targetFolder) && Files.exists(publication.previousFolder)) {
+                    Files.move(publication.previousFolder, publication.targetFolder, StandardCopyOption.ATOMIC_MOVE);
+                    log.warn("Restored interrupted publication of " + publication.targetFolder);
+                }
+                deleteFolder(publication.stagingFolder);
+                deleteFolder(publication.previousFolder);
+                Files.deleteIfExists(file);
+                log.info("Removed stale staging folder " + publication.stagingFolder);
+            }
+        } catch (IOException e) {
+            log.error("Stale staging folders cannot be removed", e);
+        }
+    }
+
+    private static void deleteFolder(Path folder) throws IOException {
+        if (!Files.exists(folder)) {
+            return;
+        }
+        Files.walkFileTree(folder, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                if (exc != null) {
+                    throw exc;
+                }
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
@@ -0,0 +1,181 @@
+package de.intranda.goobi.plugins;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.configuration.XMLConfiguration;
+import org.apache.commons.configuration.tree.xpath.XPathExpressionEngine;
+import org.goobi.beans.Process;
+
+import de.intranda.goobi.plugins.ExportLimits.Phase;
+import de.intranda.goobi.plugins.ExportResult.PhaseStatistics;
+import de.sub.goobi.config.ConfigPlugins;
+import lombok.Getter;
+import lombok.extern.log4j.Log4j;
+
+/**
+ * Exports many processes at the same time.
+ *
+ * The processes are distributed on a pool of workers, each process is exported by its own plugin instance so that problems and results are kept
+ * separately. The number of concurrent copy phases, PDF merges and API calls is limited independently from the number of workers.
+ */
+@Log4j
+public class StanfordBatchExport {
+
+    private final int workers;
+    private final ExportLimits limits;
+
+    /**
+     * 
+     * @param workers number of processes exported at the same time
+     * @param limits limits for the single phases
+     */
+    public StanfordBatchExport(int workers, ExportLimits limits) {
+        this.workers = Math.max(1, workers);
+        this.limits = limits;
+    }
+
+    /**
+     * Create a batch export with the settings from the &lt;batch&gt; element of the plugin configuration
+     * 
+     * @return
+     */
+    public static StanfordBatchExport fromConfig() {
+        XMLConfiguration config = ConfigPlugins.getPluginConfig("intranda_export_stanford");
+        config.setExpressionEngine(new XPathExpressionEngine());
+        return new StanfordBatchExport(config.getInt("batch/@workers", 8),
+                new ExportLimits(config.getInt("batch/@copies", 4), config.getInt("batch/@merges", 2), config.getInt("batch/@apiCalls", 2)));
+    }
+
+    /**
+     * Export all given processes and wait until all exports are finished
+     * 
+     * @param processes
+     * @return the summary of all exports
+     * @throws InterruptedException
+     */
+    public BatchExportResult export(List<Process> processes) throws InterruptedException {
+        long start = System.currentTimeMillis();
+        AtomicInteger counter = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(workers, r -> {
+            Thread thread = new Thread(r, "stanford-batch-export-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        List<Future<ExportResult>> futures = new ArrayList<>(processes.size());
+        try {
+            for (Process process : processes) {
+                futures.add(executor.submit(() -> exportProcess(process)));
+            }
+            BatchExportResult batchResult = new BatchExportResult();
+            for (Future<ExportResult> future : futures) {
+                try {
+                    batchResult.add(future.get());
+                } catch (ExecutionException e) {
+                    // exportProcess catches all exceptions, this should not happen
+                    log.error("Unexpected error during batch export", e);
+                }
+            }
+            batchResult.setDurationMillis(System.currentTimeMillis() - start);
+            log.info(batchResult.getSummary());
+            return batchResult;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private ExportResult exportProcess(Process process) {
+        try {
+            return new StanfordExportPlugin().export(process, limits);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            ExportResult result = new ExportResult(process.getId(), process.getTitel());
+            result.addProblem("Export was interrupted: " + process.getTitel());
+            return result;
+        } catch (Exception e) {
+            log.error("Error while exporting " + process.getTitel(), e);
+            ExportResult result = new ExportResult(process.getId(), process.getTitel());
+            result.addProblem("Error while exporting " + process.getTitel() + ": " + e.getMessage());
+            return result;
+        }
+    }
+
+    /**
+     * Aggregated result of a batch export
+     */
+    @Getter
+    public static class BatchExportResult {
+        private final List<ExportResult> results = new ArrayList<>();
+        private final Map<Phase, Long> phaseDurations = new EnumMap<>(Phase.class);
+        private long durationMillis;
+        private int successful;
+        private int failed;
+        private long bytes;
+
+        void add(ExportResult result) {
+            results.add(result);
+            if (result.isSuccessful()) {
+                successful++;
+            } else {
+                failed++;
+            }
+            bytes += result.getBytes();
+            for (Map.Entry<Phase, PhaseStatistics> entry : result.getPhases().entrySet()) {
+                phaseDurations.merge(entry.getKey(), entry.getValue().getDurationMillis(), Long::sum);
+            }
+        }
+
+        void setDurationMillis(long durationMillis) {
+            this.durationMillis = durationMillis;
+        }
+
+        /**
+         * 
+         * @return number of exported processes per minute
+         */
+        public double getProcessesPerMinute() {
+            return durationMillis == 0 ? 0 : results.size() * 60000d / durationMillis;
+        }
+
+        /**
+         * 
+         * @return copied data in MB per second
+         */
+        public double getMegabytesPerSecond() {
+            return durationMillis == 0 ? 0 : bytes / (1024d * 1024d) / (durationMillis / 1000d);
+        }
+
+        public String getSummary() {
+            StringBuilder sb = new StringBuilder();
+            sb.append("Batch export of ")
+                    .append(results.size())
+                    .append(" processes finished in ")
+                    .append(durationMillis)
+                    .append(" ms: ")
+                    .append(successful)
+                    .append(" successful, ")
+                    .append(failed)
+                    .append(" failed, ")
+                    .append(String.format(Locale.ENGLISH, "%.2f", getProcessesPerMinute()))
+                    .append(" processes/min, ")
+                    .append(String.format(Locale.ENGLISH, "%.2f", getMegabytesPerSecond()))
+                    .append(" MB/s");
+            for (Map.Entry<Phase, Long> entry : phaseDurations.entrySet()) {
+                sb.append(", ")
+                        .append(entry.getKey().name().toLowerCase(Locale.ENGLISH))
+                        .append(": ")
+                        .append(entry.getValue() / Math.max(1, results.size()))
+                        .append(" ms avg");
+            }
+            return sb.toString();
+        }
+    }
+}
@@ -1,34 +1,52 @@
 package de.intranda.goobi.plugins;
 
-import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.apache.commons.configuration.HierarchicalConfiguration;
 import org.apache.commons.configuration.XMLConfiguration;
 import org.apache.commons.configuration.tree.xpath.XPathExpressionEngine;
-import org.apache.pdfbox.io.IOUtils;
-import org.apache.pdfbox.multipdf.PDFMergerUtility;
-import org.goobi.beans.GoobiProperty;
+import org.apache.commons.lang3.StringUtils;
 import org.goobi.beans.Process;
 import org.goobi.production.cli.helper.StringPair;
 import org.goobi.production.enums.PluginType;
 import org.goobi.production.plugin.interfaces.IExportPlugin;
 import org.goobi.production.plugin.interfaces.IPlugin;
-import org.jdom2.Document;
-import org.jdom2.Element;
-import org.jdom2.output.Format;
-import org.jdom2.output.XMLOutputter;
 
+import de.intranda.goobi.plugins.AccessionApiClient.AccessionResponse;
+import de.intranda.goobi.plugins.AdaptiveConcurrency.Window;
+import de.intranda.goobi.plugins.ExportLimits.Phase;
+import de.intranda.goobi.plugins.FileCopyEngine.CopiedFile;
+import de.intranda.goobi.plugins.FileCopyEngine.CopyResult;
+import de.intranda.goobi.plugins.PageIndex.IndexedFile;
+import de.intranda.goobi.plugins.PdfMerger.MergeResult;
+import de.intranda.goobi.plugins.StorageReadinessCheck.ReadinessResult;
 import de.sub.goobi.config.ConfigPlugins;
+import de.sub.goobi.config.ConfigurationHelper;
 import de.sub.goobi.helper.Helper;
-import de.sub.goobi.helper.NIOFileUtils;
 import de.sub.goobi.helper.StorageProvider;
 import de.sub.goobi.helper.exceptions.DAOException;
 import de.sub.goobi.helper.exceptions.ExportFileException;
@@ -36,10 +54,8 @@ import de.sub.goobi.helper.exceptions.SwapException;
 import de.sub.goobi.helper.exceptions.UghHelperException;
 import jakarta.ws.rs.client.Client;
 import jakarta.ws.rs.client.ClientBuilder;
-import jakarta.ws.rs.client.Invocation.Builder;
 import jakarta.ws.rs.client.WebTarget;
-import jakarta.ws.rs.core.Response;
-import jakarta.ws.rs.core.Response.StatusType;
+import lombok.Getter;
 import lombok.extern.log4j.Log4j;
 import net.xeoh.plugins.base.annotations.PluginImplementation;
 import ugh.exceptions.DocStructHasNoTypeException;
@@ -53,13 +69,37 @@ import ugh.exceptions.WriteException;
 @Log4j
 public class StanfordExportPlugin implements IExportPlugin, IPlugin {
 
-    private static final String contentString = "content";
-    private static final String typeString = "type";
-    private static final String nameString = "name";
-    private static final String fileString = "file";
-    private static final String labelString = "label";
-    private static final String resourceString = "resource";
+    private static final AtomicBoolean started = new AtomicBoolean(false);
+    // seconds to wait for cancelled branches of an export
+    private static final long branchShutdownTimeout = 60;
     private List<String> problems = new ArrayList<>();
+    // work folder for packages, the temporary folder of Goobi is used if it is null
+    private final Path temporaryFolder;
+
+    public StanfordExportPlugin() {
+        temporaryFolder = null;
+        // deliver accession requests that are still queued and remove staging folders left over from a previous run
+        if (started.compareAndSet(false, true)) {
+            try {
+                XMLConfiguration config = ConfigPlugins.getPluginConfig(getTitle());
+                config.setExpressionEngine(new XPathExpressionEngine());
+                AccessionQueue.startIfEnabled(config);
+                StagedPublication.cleanUpStale(config);
+            } catch (RuntimeException e) {
+                log.error("Background tasks of the plugin cannot be started", e);
+            }
+        }
+    }
+
+    /**
+     * Create a plugin for exports outside of Goobi, e.g. in load tests. The configuration of Goobi is not read: the plugin configuration is passed
+     * to {@link #export(ExportJob, XMLConfiguration, ExportLimits)} and no background tasks are started.
+     *
+     * @param temporaryFolder folder for the work files of packages
+     */
+    public StanfordExportPlugin(Path temporaryFolder) {
+        this.temporaryFolder = temporaryFolder;
+    }
 
     @Override
     public PluginType getType() {
@@ -84,14 +124,64 @@ public class StanfordExportPlugin implements IExportPlugin, IPlugin {
             PreferencesException, WriteException, MetadataTypeNotAllowedException, ExportFileException, UghHelperException, ReadException,
             SwapException, DAOException, TypeNotAllowedForParentException {
 
-        //sleep for 30 seconds, to allow the NFS in stanford to sync...
-        Thread.sleep(30 * 1000l);
+        ExportResult result = export(process, ExportLimits.unlimited());
+        problems = result.getProblems();
+        return result.isSuccessful();
+    }
 
-        problems = new ArrayList<>();
+    /**
+     * Export a single process. All state of the export is kept in the returned result, so that several exports can run at the same time.
+     * 
+     * @param process
+     * @param limits limits for the number of concurrent copy phases, PDF merges and API calls
+     * @return the result of the export
+     * @throws IOException
+     * @throws InterruptedException
+     * @throws SwapException
+     * @throws DAOException
+     */
+    public ExportResult export(Process process, ExportLimits limits) throws IOException, InterruptedException, SwapException, DAOException {
         XMLConfiguration config = ConfigPlugins.getPluginConfig(getTitle());
         config.setExpressionEngine(new XPathExpressionEngine());
+        return export(ExportJob.fromProcess(process), config, limits);
+    }
+
+    /**
+     * Export the source folders of a job with the given configuration, without accessing the Goobi process
+     * 
+     * @param job properties and source folders of the process
+     * @param config plugin configuration using the XPath expression engine
+     * @param limits limits for the number of concurrent copy phases, PDF merges and API calls
+     * @return the result of the export
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public ExportResult export(ExportJob job, XMLConfiguration config, ExportLimits limits) throws IOException, InterruptedException {
+        ExportResult result = new ExportResult(job.getProcessId(), job.getTitle());
+        try {
+            runExport(job, config, limits, result);
+        } finally {
+            result.setDurationMillis(System.currentTimeMillis() - result.getStartTime());
+            ExportMetrics.getInstance().record(result);
+            log.info(ExportReport.getSummary(result));
+            // the report is written outside of the published object folder, so it does not change the export the ingest reads
+            Path reportFile = result.getObjectFolder() == null ? null
+                    : ExportReport.getReportFile(config, result.getObjectFolder(), result.getObjectId());
+            if (reportFile != null) {
+                try {
+                    ExportReport.write(result, reportFile);
+                } catch (IOException e) {
+                    log.error("Export report for " + job.getTitle() + " cannot be written", e);
+                }
+            }
+        }
+        return result;
+    }
+
+    private void runExport(ExportJob job, XMLConfiguration config, ExportLimits limits, ExportResult result)
+            throws IOException, InterruptedException {
         String tempDestination = config.getString("tempDestination", "");
-        destination = config.getString("destination", "/tmp");
+        String destination = config.getString("destination", "/tmp");
         String endpoint = config.getString("endpoint", "accession");
         String metadataFileName = config.getString("metadataFileName", "stubContentMetadata.xml");
         String apiBaseUrl = config.getString("apiBaseUrl", "http://example.com/");
@@ -108,31 +198,23 @@ public class StanfordExportPlugin implements IExportPlugin, IPlugin {
             }
         }
 
-        String objectId = null;
-        String contentType = null;
-        String resourceType = null;
+        String objectId = job.getProperty("objectId");
+        String contentType = job.getProperty("contentType");
+        String resourceType = job.getProperty("objectType");
+        String packageModeProperty = job.getProperty("packageMode");
         Path exportRootFolder;
 
-        for (GoobiProperty property : process.getEigenschaften()) {
-            if (property.getTitel().equalsIgnoreCase("objectId")) {
-                objectId = property.getWert();
-            } else if (property.getTitel().equalsIgnoreCase("contentType")) {
-                contentType = property.getWert();
-            } else if (property.getTitel().equalsIgnoreCase("objectType")) {
-                resourceType = property.getWert();
-            }
-        }
         if (objectId == null) {
             Helper.setFehlerMeldung("No objectId found, aborting.");
-            log.error("No objectId found, export canceled: " + process.getTitel());
-            problems.add("No objectId found, export canceled: " + process.getTitel());
-            return false;
+            log.error("No objectId found, export canceled: " + job.getTitle());
+            result.addProblem("No objectId found, export canceled: " + job.getTitle());
+            return;
         }
         if (contentType == null) {
             Helper.setFehlerMeldung("No contentType found, aborting");
-            log.error("No contentType found, export canceled: " + process.getTitel());
-            problems.add("No contentType found, export canceled: " + process.getTitel());
-            return false;
+            log.error("No contentType found, export canceled: " + job.getTitle());
+            result.addProblem("No contentType found, export canceled: " + job.getTitle());
+            return;
         }
         String originalObjectId = objectId;
         if (objectId.contains(":")) {
@@ -147,214 +229,667 @@ public class StanfordExportPlugin implements IExportPlugin, IPlugin {
                     objectId.substring(7), objectId);
         } else {
             Helper.setFehlerMeldung("ObjectId has unexpected length, aborting.");
-            log.error("ObjectId has unexpected length, export canceled: " + process.getTitel());
-            problems.add("ObjectId has unexpected length, export canceled: " + process.getTitel());
-            return false;
+            log.error("ObjectId has unexpected length, export canceled: " + job.getTitle());
+            result.addProblem("ObjectId has unexpected length, export canceled: " + job.getTitle());
+            return;
         }
         Path exportfolder = Paths.get(exportRootFolder.toString(), "content");
         Path metadatafolder = Paths.get(exportRootFolder.toString(), "metadata");
-
-        Files.createDirectories(exportfolder);
-        Files.createDirectories(metadatafolder);
-        List<String> imageFileNames = null;
-        List<String> altoFileNames = null;
-        List<String> pdfFileNames = null;
-        // copy all images from media folder
-
-        Path imageMediaFolder = Paths.get(process.getImagesTifDirectory(false));
-        if (Files.exists(imageMediaFolder)) {
-            StorageProvider.getInstance().copyDirectory(imageMediaFolder, exportfolder);
-            imageFileNames = StorageProvider.getInstance().list(process.getImagesTifDirectory(false), NIOFileUtils.fileFilter);
-
-            for (String filename : imageFileNames) {
-                Path source = Paths.get(imageMediaFolder.toString(), filename);
-                Path target = Paths.get(exportfolder.toString(), filename);
-                long checksumSrc = StorageProvider.getInstance().checksumMappedFile(source.toString());
-                long checksumDest = StorageProvider.getInstance().checksumMappedFile(target.toString());
-                if (checksumSrc != checksumDest) {
-                    Helper.setFehlerMeldung("Checksum error while validating images, aborting.");
-                    log.error("Checksum error while validating images: " + target.toString());
-                    problems.add("Checksum error while validating images: " + target.toString());
-                    return false;
-                }
+        result.setObjectId(objectId);
+        result.setObjectFolder(exportRootFolder);
+        Path imageMediaFolder = job.getImageFolder();
+        Path ocrFolder = job.getAltoFolder();
+        Path pdfFolder = job.getPdfFolder();
+        List<CopiedFile> copiedFiles = new ArrayList<>();
+
+        // wait until the NFS in stanford is in sync
+        long phaseStart = System.currentTimeMillis();
+        StorageReadinessCheck readinessCheck = StorageReadinessCheck.fromConfig(config);
+        boolean sourceReady = false;
+        if (readinessCheck.isEnabled()) {
+            ReadinessResult readiness = readinessCheck.waitForStableFolders(Arrays.asList(imageMediaFolder, ocrFolder, pdfFolder));
+            sourceReady = readiness.isReady();
+            if (sourceReady) {
+                log.info("Source folders of " + job.getTitle() + " were ready after " + readiness.getWaitedMillis() + " ms");
+            } else {
+                log.warn("Source folders of " + job.getTitle() + " were not stable after " + readiness.getWaitedMillis()
+                        + " ms, using fallback delay");
             }
         }
-
-        // copy all alto files from ocr folder
-        Path ocrFolder = Paths.get(process.getOcrAltoDirectory());
-        if (Files.exists(ocrFolder)) {
-            StorageProvider.getInstance().copyDirectory(ocrFolder, exportfolder);
-            altoFileNames = StorageProvider.getInstance().list(process.getOcrAltoDirectory(), NIOFileUtils.fileFilter);
-
-            for (String filename : altoFileNames) {
-                Path source = Paths.get(ocrFolder.toString(), filename);
-                Path target = Paths.get(exportfolder.toString(), filename);
-                long checksumSrc = StorageProvider.getInstance().checksumMappedFile(source.toString());
-                long checksumDest = StorageProvider.getInstance().checksumMappedFile(target.toString());
-                if (checksumSrc != checksumDest) {
-                    Helper.setFehlerMeldung("Checksum error while validating alto files, aborting.");
-                    log.error("Checksum error while validating alto files: " + target.toString());
-                    problems.add("Checksum error while validating alto files: " + target.toString());
-                    return false;
+        if (!sourceReady) {
+            int initialDelay = config.getInt("initialDelay", 30);
+            if (initialDelay > 0) {
+                TimeUnit.SECONDS.sleep(initialDelay);
+            }
+            log.info("Waited " + initialDelay + " s before exporting " + job.getTitle());
+        }
+        result.addPhaseDuration(Phase.WAIT, System.currentTimeMillis() - phaseStart);
+
+        PackageMode packageMode = PackageMode.fromConfig(config, packageModeProperty);
+        ExportJournal journal = null;
+        boolean exportPublished;
+        if (packageMode.isPackage()) {
+            // write content and metadata into a single file instead of the object folder
+            journal = ExportJournal.disabled();
+            Path metadataCopy = StringUtils.isBlank(tempDestination) ? null : Paths.get(tempDestination, "dor_export_" + objectId + ".xml");
+            if (!exportPackage(job, config, limits, result, objectId, contentType, packageMode, exportRootFolder, metadataCopy)) {
+                return;
+            }
+            exportPublished = true;
+        } else {
+            // build the export in a staging folder and publish it when it is complete
+            StagedPublication publication = StagedPublication.fromConfig(config, exportRootFolder);
+            // journal and manifest are kept outside of the export, so the published tree contains only the files for the ingest
+            Path stateFolder = getStateFolder(config, exportRootFolder);
+            Path manifestFile = stateFolder.resolve(config.getString("manifest/@fileName", "exportManifest.xml"));
+            try {
+                Path workFolder = publication.prepare();
+                Files.createDirectories(stateFolder);
+                moveLegacyFile(workFolder.resolve("metadata"), stateFolder, config.getString("checkpoint/@fileName", "exportJournal.txt"));
+                moveLegacyFile(workFolder.resolve("metadata"), stateFolder, manifestFile.getFileName().toString());
+                // completed steps of an earlier attempt are not repeated
+                journal = ExportJournal.fromConfig(config, stateFolder);
+                if (!exportFiles(job, config, limits, result, objectId, contentType, workFolder.resolve("content"),
+                        workFolder.resolve("metadata"), manifestFile, copiedFiles, journal)) {
+                    return;
                 }
+                journal.close();
+                phaseStart = System.currentTimeMillis();
+                publication.publish();
+                // the new manifest describes the published export only now
+                Path pendingManifest = getPendingManifest(manifestFile);
+                if (Files.exists(pendingManifest)) {
+                    Files.move(pendingManifest, manifestFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                }
+                if (publication.isEnabled()) {
+                    log.debug("Published export of " + job.getTitle() + " in " + (System.currentTimeMillis() - phaseStart) + " ms");
+                }
+            } finally {
+                if (journal != null) {
+                    journal.close();
+                }
+                publication.discard();
+            }
+
+            // if the xml shall be saved additional into a temporary folder
+            if (tempDestination != null && tempDestination.length() > 0) {
+                phaseStart = System.currentTimeMillis();
+                ContentMetadataWriter.publishCopy(metadatafolder.resolve(metadataFileName),
+                        Paths.get(tempDestination, "dor_export_" + objectId + ".xml"));
+                result.addPhaseDuration(Phase.METADATA, System.currentTimeMillis() - phaseStart);
             }
 
+            exportPublished = publication.isEnabled();
         }
 
-        // copy all pdf files
-        Path pdfFolder = Paths.get(process.getOcrPdfDirectory());
-        if (Files.exists(pdfFolder)) {
-            StorageProvider.getInstance().copyDirectory(pdfFolder, exportfolder);
-            pdfFileNames = StorageProvider.getInstance().list(process.getOcrPdfDirectory(), NIOFileUtils.fileFilter);
-            for (String filename : pdfFileNames) {
-                Path source = Paths.get(pdfFolder.toString(), filename);
-                Path target = Paths.get(exportfolder.toString(), filename);
-                long checksumSrc = StorageProvider.getInstance().checksumMappedFile(source.toString());
-                long checksumDest = StorageProvider.getInstance().checksumMappedFile(target.toString());
-                if (checksumSrc != checksumDest) {
-                    Helper.setFehlerMeldung("Checksum error while validating pdf files, aborting.");
-                    log.error("Checksum error while validating pdf files: " + target.toString());
-                    problems.add("Checksum error while validating pdf files: " + target.toString());
-                    return false;
-                }
+        // wait until the exported files are visible before the ingest gets started, a published staging folder or package is complete already
+        phaseStart = System.currentTimeMillis();
+        boolean exportReady = exportPublished;
+        if (!exportReady && readinessCheck.isEnabled()) {
+            ReadinessResult readiness = readinessCheck.waitForExportFolder(exportfolder, copiedFiles, Arrays.asList(metadatafolder));
+            exportReady = readiness.isReady();
+            if (exportReady) {
+                log.info("Export of " + job.getTitle() + " was ready after " + readiness.getWaitedMillis() + " ms");
+            } else {
+                log.warn("Export of " + job.getTitle() + " was not stable after " + readiness.getWaitedMillis() + " ms, using fallback delay");
+            }
+        }
+        if (!exportReady) {
+            int delay = config.getInt("delay", 0);
+            if (delay > 0) {
+                TimeUnit.SECONDS.sleep(delay);
+                log.info("Waited " + delay + " s before calling the API for " + job.getTitle());
             }
         }
+        result.addPhaseDuration(Phase.WAIT, System.currentTimeMillis() - phaseStart);
+
+        // add the request to the queue, it gets delivered in the background
+        if (config.getBoolean("accessionQueue/@enabled", false)) {
+            AccessionQueue.getInstance(config).enqueue(job.getProcessId(), originalObjectId, apiBaseUrl, endpoint, queryParameter);
+            journal.complete();
+            Helper.setMeldung("Export was successful, accession request was queued");
+            result.setSuccessful(true);
+            return;
+        }
 
-        // generate one big pdf for all single page PDFs
-        if (pdfFileNames != null && pdfFileNames.size() > 0) {
-            mergePdfFiles(pdfFolder, pdfFileNames, exportfolder, objectId);
+        // the accession was requested by an earlier attempt already
+        if (journal.isAccessionDone()) {
+            journal.complete();
+            Helper.setMeldung("Export was successful, accession was requested before");
+            result.setSuccessful(true);
+            return;
         }
 
-        // create metadata file
-        Document document = createMetadataFile(contentType, resourceType, imageFileNames, altoFileNames, pdfFileNames, objectId);
+        // call api
+        phaseStart = System.currentTimeMillis();
+        AccessionResponse response;
+        limits.acquire(Phase.API);
+        try {
+            response = AccessionApiClient.getInstance(config).post(apiBaseUrl, originalObjectId, endpoint, queryParameter, accessToken);
+        } finally {
+            limits.release(Phase.API);
+        }
+        result.addPhaseDuration(Phase.API, System.currentTimeMillis() - phaseStart);
+        if (response.isSuccessful()) {
+            journal.accessionSucceeded();
+            journal.complete();
+            Helper.setMeldung("API call was successful: " + response.getMessage() + " (" + response.getStatusCode() + ")");
+            result.setSuccessful(true);
+            return;
+        } else {
+            Helper.setFehlerMeldung("Something went wrong: " + response.getMessage() + " (" + response.getStatusCode() + ")");
+            result.addProblem("Something went wrong: " + response.getMessage() + " (" + response.getStatusCode() + ")");
+            return;
+        }
+    }
 
-        // save xml file
-        XMLOutputter xmlOutput = new XMLOutputter();
-        xmlOutput.setFormat(Format.getPrettyFormat());
-        xmlOutput.output(document, new FileWriter(Paths.get(metadatafolder.toString(), metadataFileName).toString()));
+    /**
+     * Copy all files of the process into the export folder, generate the PDF file and write the content metadata
+     * 
+     * @param job
+     * @param config
+     * @param limits
+     * @param result
+     * @param objectId
+     * @param contentType
+     * @param exportfolder folder for the content files
+     * @param metadatafolder folder for the content metadata
+     * @param manifestFile manifest of the last export, the new manifest is written next to it and must be moved into place after publication
+     * @param copiedFiles list to add all exported files to
+     * @param journal checkpoint journal to record and skip completed steps
+     * @return true, if all files were exported
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    private boolean exportFiles(ExportJob job, XMLConfiguration config, ExportLimits limits, ExportResult result, String objectId,
+            String contentType, Path exportfolder, Path metadatafolder, Path manifestFile, List<CopiedFile> copiedFiles, ExportJournal journal)
+            throws IOException, InterruptedException {
+        Files.createDirectories(exportfolder);
+        Files.createDirectories(metadatafolder);
+        Path imageMediaFolder = job.getImageFolder();
+        Path ocrFolder = job.getAltoFolder();
+        Path pdfFolder = job.getPdfFolder();
+
+        // read all source files and the files of the last export once, all later steps use these lists
+        PageIndex pageIndex = PageIndex.build(imageMediaFolder, ocrFolder, pdfFolder);
+        Map<String, IndexedFile> exportedFiles = new HashMap<>();
+        for (IndexedFile file : PageIndex.listFiles(exportfolder)) {
+            exportedFiles.put(file.getName(), file);
+        }
 
-        // if the xml shall be saved additional into a temporary folder
-        if (tempDestination != null && tempDestination.length() > 0) {
-            xmlOutput = new XMLOutputter();
-            xmlOutput.setFormat(Format.getPrettyFormat());
-            xmlOutput.output(document, new FileWriter(Paths.get(tempDestination, "dor_export_" + objectId + ".xml").toString()));
+        // the manifest of the last export is used to copy only new or changed files
+        boolean incremental = config.getBoolean("manifest/@enabled", true);
+        ExportManifest previousManifest = incremental ? ExportManifest.load(manifestFile) : new ExportManifest();
+        // files of an interrupted export are treated like files of the last export
+        if (journal.isResumed()) {
+            log.info("Resuming export of " + job.getTitle() + " with " + journal.getCopiedFiles().size() + " completed files");
+            previousManifest.addFiles(journal.getCopiedFiles().values());
+            if (journal.getMergedFile() != null) {
+                previousManifest.setMergedFile(journal.getMergedFile());
+            }
+        }
+        boolean pdfFilesChanged = journal.isMergePending();
+        boolean changed = false;
+
+        // digests that are computed during the copy and written into the content metadata
+        List<DigestType> digestTypes = DigestType.fromConfig(config);
+
+        // decide before copying which files changed and if the PDF file must be merged again, so that the merge does not wait for the copies
+        FolderCopy images = selectChangedFiles("images", imageMediaFolder, pageIndex.getImageFiles(), previousManifest, exportedFiles, digestTypes,
+                copiedFiles);
+        FolderCopy altoFiles = selectChangedFiles("alto files", ocrFolder, pageIndex.getAltoFiles(), previousManifest, exportedFiles, digestTypes,
+                copiedFiles);
+        FolderCopy pdfCopies = selectChangedFiles("pdf files", pdfFolder, pageIndex.getPdfFiles(), previousManifest, exportedFiles, digestTypes,
+                copiedFiles);
+        List<FolderCopy> folderCopies = Arrays.asList(images, altoFiles, pdfCopies);
+        pdfFilesChanged |= !pdfCopies.getChangedFiles().isEmpty();
+
+        // files that were exported last time, but don't exist anymore
+        Set<String> currentFiles = new HashSet<>();
+        for (List<IndexedFile> files : Arrays.asList(pageIndex.getImageFiles(), pageIndex.getAltoFiles(), pageIndex.getPdfFiles())) {
+            if (files != null) {
+                currentFiles.addAll(PageIndex.getFileNames(files));
+            }
+        }
+        List<String> removedFiles = new ArrayList<>();
+        for (String filename : previousManifest.getFileNames()) {
+            if (!currentFiles.contains(filename)) {
+                removedFiles.add(filename);
+                if (filename.toLowerCase().endsWith(".pdf")) {
+                    pdfFilesChanged = true;
+                }
+            }
         }
 
-        int delay = config.getInt("delay", 0);
-        if (delay > 0) {
-            TimeUnit.SECONDS.sleep(delay);
+        // generate one big pdf for all single page PDFs, if one of them changed since the last export
+        Path mergedPdf = exportfolder.resolve(objectId + ".pdf");
+        IndexedFile exportedPdf = exportedFiles.get(objectId + ".pdf");
+        CopiedFile mergedFile = null;
+        List<IndexedFile> pdfFiles = pageIndex.getPdfFiles();
+        boolean mergeRequired = false;
+        if (pdfFiles != null && !pdfFiles.isEmpty()) {
+            if (!pdfFilesChanged && exportedPdf != null) {
+                mergedFile = previousManifest.getUnchangedMergedFile(exportedPdf.getSize(), exportedPdf.getLastModified(), digestTypes);
+            }
+            mergeRequired = mergedFile == null;
         }
 
-        // call api
-        Client client = ClientBuilder.newClient();
-        WebTarget base = client.target(apiBaseUrl);
-        WebTarget target = base.path(originalObjectId).path(endpoint);
+        // the copies are bound by the storage and the merge by the CPU, so they run as parallel branches. The first failure cancels all others.
+        AtomicReference<MergeResult> mergeResult = new AtomicReference<>();
+        AtomicLong mergeMillis = new AtomicLong();
+        AdaptiveConcurrency concurrency = AdaptiveConcurrency.getInstance(config);
+        List<CopyResult> copyResults = new ArrayList<>();
+        Map<Future<Boolean>, FolderCopy> copyBranches = new HashMap<>();
+        List<Future<Boolean>> branches = new ArrayList<>();
+        boolean copyLimitAcquired = false;
+        long phaseStart = System.currentTimeMillis();
+        try (FileCopyEngine copyEngine = FileCopyEngine.fromConfig(config, concurrency); Window concurrencyWindow = concurrency.openWindow()) {
+            ExecutorService branchExecutor = createBranchExecutor(folderCopies.size() + 1);
+            CompletionService<Boolean> completionService = new ExecutorCompletionService<>(branchExecutor);
+            try {
+                if (mergeRequired) {
+                    PdfMerger pdfMerger = PdfMerger.fromConfig(config);
+                    List<String> pdfFileNames = PageIndex.getFileNames(pdfFiles);
+                    branches.add(completionService.submit(() -> {
+                        long mergeStart = System.currentTimeMillis();
+                        limits.acquire(Phase.MERGE);
+                        try {
+                            mergeResult.set(mergePdfFiles(pdfFolder, pdfFileNames, exportfolder, objectId, pdfMerger, digestTypes));
+                        } finally {
+                            limits.release(Phase.MERGE);
+                        }
+                        mergeMillis.set(System.currentTimeMillis() - mergeStart);
+                        journal.mergeFinished(mergeResult.get().getMergedFile());
+                        return true;
+                    }));
+                }
 
-        if (!queryParameter.isEmpty()) {
-            for (StringPair sp : queryParameter) {
-                target = target.queryParam(sp.getOne(), sp.getTwo());
+                limits.acquire(Phase.COPY);
+                copyLimitAcquired = true;
+                for (FolderCopy folderCopy : folderCopies) {
+                    if (!folderCopy.getChangedFiles().isEmpty()) {
+                        Future<Boolean> branch = completionService.submit(() -> {
+                            folderCopy.result = copyEngine.copyFiles(folderCopy.getSourceFolder(), folderCopy.getChangedFiles(), exportfolder,
+                                    journal::fileCopied);
+                            return folderCopy.result.isSuccessful();
+                        });
+                        branches.add(branch);
+                        copyBranches.put(branch, folderCopy);
+                    }
+                }
+
+                for (int i = 0; i < branches.size(); i++) {
+                    // the storage is not used by this export anymore, even if the merge is still running
+                    if (copyLimitAcquired && copyBranches.isEmpty()) {
+                        limits.release(Phase.COPY);
+                        copyLimitAcquired = false;
+                        addCopyPhases(result, copyResults, concurrencyWindow, System.currentTimeMillis() - phaseStart);
+                    }
+                    Future<Boolean> branch = completionService.take();
+                    boolean successful;
+                    try {
+                        successful = branch.get();
+                    } catch (ExecutionException e) {
+                        Throwable cause = e.getCause();
+                        throw cause instanceof IOException ? (IOException) cause : new IOException(String.valueOf(cause), cause);
+                    }
+                    FolderCopy folderCopy = copyBranches.remove(branch);
+                    if (folderCopy != null) {
+                        copyResults.add(folderCopy.result);
+                        if (!successful) {
+                            reportCopyFailure(folderCopy, result);
+                            return false;
+                        }
+                        addCopiedFiles(folderCopy, copiedFiles, result);
+                    }
+                }
+            } finally {
+                cancelBranches(branches, branchExecutor);
+                if (copyLimitAcquired) {
+                    limits.release(Phase.COPY);
+                    addCopyPhases(result, copyResults, concurrencyWindow, System.currentTimeMillis() - phaseStart);
+                }
             }
         }
+        for (FolderCopy folderCopy : folderCopies) {
+            changed |= !folderCopy.getChangedFiles().isEmpty();
+        }
 
-        Builder requestBuilder = target.request();
-        log.debug("Sending POST request to " + target.getUri());
+        // remove files that were exported last time, but don't exist anymore
+        for (String filename : removedFiles) {
+            Files.deleteIfExists(exportfolder.resolve(filename));
+            changed = true;
+        }
+        ExportManifest manifest = new ExportManifest();
+        manifest.addFiles(copiedFiles);
+
+        if (mergeRequired) {
+            mergedFile = mergeResult.get().getMergedFile();
+            result.addPhase(Phase.MERGE, mergeMillis.get(), mergedFile.getSize(), pdfFiles.size());
+            result.getThrottle().addWaitMillis(mergeResult.get().getThrottleMillis());
+            result.setMergeSampledHeapBytes(mergeResult.get().getSampledHeapBytes());
+            changed = true;
+        }
+        if (mergedFile != null) {
+            manifest.setMergedFile(mergedFile);
+        } else if (exportedPdf != null) {
+            Files.deleteIfExists(mergedPdf);
+            changed = true;
+        }
 
-        requestBuilder.header("Authorization", accessToken);
+        if (incremental) {
+            manifest.save(getPendingManifest(manifestFile));
+        }
 
-        Response response = requestBuilder.post(null);
-        StatusType type = response.getStatusInfo();
-        int statuscode = type.getStatusCode();
-        if (statuscode >= 200 && statuscode < 300) {
-            Helper.setMeldung("API call was successful: " + type.getReasonPhrase() + " (" + type.getStatusCode() + ")");
+        // create metadata file, unless an earlier attempt wrote it for the same files already
+        phaseStart = System.currentTimeMillis();
+        Path metadataFile = metadatafolder.resolve(config.getString("metadataFileName", "stubContentMetadata.xml"));
+        CopiedFile writtenMetadata = journal.getMetadataFile();
+        if (!changed && writtenMetadata != null && Files.exists(metadataFile) && Files.size(metadataFile) == writtenMetadata.getSize()
+                && Files.getLastModifiedTime(metadataFile).toMillis() == writtenMetadata.getLastModified()) {
+            log.debug("Content metadata of " + job.getTitle() + " was written before");
             return true;
-        } else {
-            Helper.setFehlerMeldung("Something went wrong: " + type.getReasonPhrase() + " (" + type.getStatusCode() + ")");
-            problems.add("Something went wrong: " + type.getReasonPhrase() + " (" + type.getStatusCode() + ")");
-            return false;
         }
-
+        Map<String, CopiedFile> fileInformation = null;
+        if (!digestTypes.isEmpty()) {
+            fileInformation = new LinkedHashMap<>();
+            for (CopiedFile file : copiedFiles) {
+                fileInformation.put(file.getName(), file);
+            }
+            if (mergedFile != null) {
+                fileInformation.put(mergedFile.getName(), mergedFile);
+            }
+        }
+        ContentMetadataWriter.writeMetadataFile(metadataFile, contentType, pageIndex, objectId, fileInformation);
+        long metadataSize = Files.size(metadataFile);
+        journal.metadataWritten(
+                new CopiedFile(metadataFile.getFileName().toString(), metadataSize, Files.getLastModifiedTime(metadataFile).toMillis(), 0));
+        result.addPhase(Phase.METADATA, System.currentTimeMillis() - phaseStart, metadataSize, 1);
+        return true;
     }
 
     /**
-     * create the metadata xml file for the images, the alto and the pdf files
+     * Write all files of the process, the generated PDF file and the content metadata into a single package next to the object folder
      * 
-     * @param contentType
-     * @param resourceType
-     * @param imageFileNames
-     * @param altoFileNames
-     * @param pdfFileNames
+     * @param job
+     * @param config
+     * @param limits
+     * @param result
      * @param objectId
-     * @return
+     * @param contentType
+     * @param packageMode TAR or BAGIT
+     * @param exportRootFolder object folder of the exploded export
+     * @param metadataCopy additional location for the content metadata or null
+     * @return true, if the package was written
+     * @throws IOException
+     * @throws InterruptedException
      */
-    private Document createMetadataFile(String contentType, String resourceType, List<String> imageFileNames, List<String> altoFileNames,
-            List<String> pdfFileNames, String objectId) {
-        Document doc = new Document();
-
-        Element content = new Element(contentString);
-
-        doc.setRootElement(content);
+    private boolean exportPackage(ExportJob job, XMLConfiguration config, ExportLimits limits, ExportResult result, String objectId,
+            String contentType, PackageMode packageMode, Path exportRootFolder, Path metadataCopy)
+            throws IOException, InterruptedException {
+        Path imageMediaFolder = job.getImageFolder();
+        Path ocrFolder = job.getAltoFolder();
+        Path pdfFolder = job.getPdfFolder();
+        PageIndex pageIndex = PageIndex.build(imageMediaFolder, ocrFolder, pdfFolder);
+        List<DigestType> digestTypes = DigestType.fromConfig(config);
+
+        // merged PDF file and content metadata are generated locally before they are added to the package
+        Path workFolder = Files.createTempDirectory(getTemporaryFolder(), "stanford_package_");
+        ExecutorService branchExecutor = createBranchExecutor(1);
+        List<Future<MergeResult>> branches = new ArrayList<>();
+        try (PackageWriter packageWriter = PackageWriter.fromConfig(config, packageMode, exportRootFolder, objectId)) {
+            // generate one big pdf for all single page PDFs in the work folder, while the other files are written into the package
+            List<IndexedFile> pdfFiles = pageIndex.getPdfFiles();
+            AtomicLong mergeMillis = new AtomicLong();
+            if (pdfFiles != null && !pdfFiles.isEmpty()) {
+                PdfMerger pdfMerger = PdfMerger.fromConfig(config);
+                List<String> pdfFileNames = PageIndex.getFileNames(pdfFiles);
+                branches.add(branchExecutor.submit(() -> {
+                    long mergeStart = System.currentTimeMillis();
+                    limits.acquire(Phase.MERGE);
+                    try {
+                        return mergePdfFiles(pdfFolder, pdfFileNames, workFolder, objectId, pdfMerger, Collections.emptyList());
+                    } finally {
+                        limits.release(Phase.MERGE);
+                        mergeMillis.set(System.currentTimeMillis() - mergeStart);
+                    }
+                }));
+            }
 
-        content.setAttribute(typeString, contentType);
+            Map<String, CopiedFile> fileInformation = new LinkedHashMap<>();
+            long phaseStart = System.currentTimeMillis();
+            limits.acquire(Phase.COPY);
+            try {
+                addPackageFiles(packageWriter, imageMediaFolder, pageIndex.getImageFiles(), fileInformation);
+                addPackageFiles(packageWriter, ocrFolder, pageIndex.getAltoFiles(), fileInformation);
+                addPackageFiles(packageWriter, pdfFolder, pageIndex.getPdfFiles(), fileInformation);
+            } catch (IOException e) {
+                Helper.setFehlerMeldung("Error while packaging files, aborting.");
+                log.error("Error while packaging files of " + job.getTitle(), e);
+                result.addProblem("Error while packaging files: " + e.getMessage());
+                return false;
+            } finally {
+                limits.release(Phase.COPY);
+            }
+            result.addPhase(Phase.COPY, System.currentTimeMillis() - phaseStart, packageWriter.getBytes(), packageWriter.getFiles());
+            result.addBytes(packageWriter.getBytes());
+
+            for (Future<MergeResult> branch : branches) {
+                MergeResult mergeResult;
+                try {
+                    mergeResult = branch.get();
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    throw cause instanceof IOException ? (IOException) cause : new IOException(String.valueOf(cause), cause);
+                }
+                CopiedFile mergedFile = packageWriter.addContentFile(workFolder.resolve(objectId + ".pdf"), -1);
+                fileInformation.put(mergedFile.getName(), mergedFile);
+                result.addPhase(Phase.MERGE, mergeMillis.get(), mergedFile.getSize(), pdfFiles.size());
+                result.getThrottle().addWaitMillis(mergeResult.getThrottleMillis());
+                result.setMergeSampledHeapBytes(mergeResult.getSampledHeapBytes());
+            }
 
-        if (imageFileNames != null) {
+            // create metadata file and complete the package
+            phaseStart = System.currentTimeMillis();
+            Path metadataFile = workFolder.resolve(config.getString("metadataFileName", "stubContentMetadata.xml"));
+            ContentMetadataWriter.writeMetadataFile(metadataFile, contentType, pageIndex, objectId, digestTypes.isEmpty() ? null : fileInformation);
+            packageWriter.addMetadataFile(metadataFile);
+            packageWriter.publish();
+            result.getThrottle().addWaitMillis(packageWriter.getThrottleMillis());
+            if (metadataCopy != null) {
+                ContentMetadataWriter.publishCopy(metadataFile, metadataCopy);
+            }
+            result.addPhase(Phase.METADATA, System.currentTimeMillis() - phaseStart, Files.size(metadataFile), 1);
+            log.info("Exported " + packageWriter.getFiles() + " files of " + job.getTitle() + " into " + packageWriter.getPackageFile());
+            return true;
+        } finally {
+            cancelBranches(branches, branchExecutor);
+            StorageProvider.getInstance().deleteDir(workFolder);
+        }
+    }
 
-            if (altoFileNames != null && imageFileNames.size() == altoFileNames.size()) {
+    private static void addPackageFiles(PackageWriter packageWriter, Path sourceFolder, List<IndexedFile> files,
+            Map<String, CopiedFile> fileInformation) throws IOException, InterruptedException {
+        if (files == null) {
+            return;
+        }
+        for (IndexedFile file : files) {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            CopiedFile packagedFile = packageWriter.addContentFile(sourceFolder.resolve(file.getName()), file.getLastModified());
+            fileInformation.put(packagedFile.getName(), packagedFile);
+        }
+    }
 
-                for (int index = 0; index < imageFileNames.size(); index++) {
-                    Element resource = new Element(resourceString);
-                    content.addContent(resource);
+    /**
+     * Get the folder for journal and manifest of an object from the folder attribute of the &lt;state&gt; element. Without folder, the state is
+     * kept in &lt;objectId&gt;.state next to the object folder.
+     * 
+     * @param config
+     * @param objectFolder
+     * @return
+     */
+    private static Path getStateFolder(XMLConfiguration config, Path objectFolder) {
+        String folder = config.getString("state/@folder", "");
+        String objectId = objectFolder.getFileName().toString();
+        return StringUtils.isBlank(folder) ? objectFolder.resolveSibling(objectId + ".state") : Paths.get(folder, objectId);
+    }
 
-                    // create image entry
-                    Element label = new Element(labelString);
-                    label.setText("Page " + (index + 1));
-                    String imageName = imageFileNames.get(index);
-                    Element imageFile = new Element(fileString);
-                    imageFile.setAttribute(nameString, imageName);
-                    resource.addContent(label);
-                    resource.addContent(imageFile);
+    private static Path getPendingManifest(Path manifestFile) {
+        return manifestFile.resolveSibling(manifestFile.getFileName().toString() + ".pending");
+    }
 
-                    // create pdf entry
-                    if (pdfFileNames != null) {
-                        String pdfName = pdfFileNames.get(index);
-                        Element pdfFile = new Element(fileString);
-                        pdfFile.setAttribute(nameString, pdfName);
-                        resource.addContent(pdfFile);
-                    }
+    /**
+     * Move a journal or manifest of an earlier version of the plugin from the metadata folder of the export into the state folder. If the state
+     * folder contains the file already, the old file is removed.
+     * 
+     * @param metadataFolder
+     * @param stateFolder
+     * @param fileName
+     * @throws IOException
+     */
+    private static void moveLegacyFile(Path metadataFolder, Path stateFolder, String fileName) throws IOException {
+        Path legacyFile = metadataFolder.resolve(fileName);
+        if (!Files.exists(legacyFile)) {
+            return;
+        }
+        Path stateFile = stateFolder.resolve(fileName);
+        if (Files.exists(stateFile)) {
+            Files.delete(legacyFile);
+        } else {
+            Files.move(legacyFile, stateFile);
+        }
+        log.info("Moved " + fileName + " out of the exported metadata folder " + metadataFolder);
+    }
 
-                    // create alto entry
-                    String altoName = altoFileNames.get(index);
-                    Element altoFile = new Element(fileString);
-                    altoFile.setAttribute(nameString, altoName);
-                    altoFile.setAttribute("role", "transcription");
-                    altoFile.setAttribute("publish", "yes");
-                    altoFile.setAttribute("preserve", "yes");
-                    altoFile.setAttribute("shelve", "yes");
-                    resource.addContent(altoFile);
-                }
+    /**
+     * Add the statistics of the copy phase to the export result. Copy and verification of the files are running at the same time, the duration of
+     * the phase is split according to the time all threads spent for copying and for verification.
+     * 
+     * @param result
+     * @param copyResults
+     * @param concurrency changes of the limit of the files copied at the same time during this export
+     * @param durationMillis duration of the complete copy phase
+     */
+    private static void addCopyPhases(ExportResult result, List<CopyResult> copyResults, Window concurrency, long durationMillis) {
+        long copyNanos = 0;
+        long verifyNanos = 0;
+        long throttleNanos = 0;
+        long bytes = 0;
+        int files = 0;
+        for (CopyResult copyResult : copyResults) {
+            copyNanos += copyResult.getCopyNanos();
+            verifyNanos += copyResult.getVerifyNanos();
+            throttleNanos += copyResult.getThrottleNanos();
+            bytes += copyResult.getBytes();
+            files += copyResult.getFiles().size();
+        }
+        long copyMillis = copyNanos + verifyNanos == 0 ? durationMillis : durationMillis * copyNanos / (copyNanos + verifyNanos);
+        result.addPhase(Phase.COPY, copyMillis, bytes, files);
+        result.addPhase(Phase.VERIFY, durationMillis - copyMillis, bytes, files);
+        result.getThrottle().addWaitMillis(throttleNanos / 1_000_000);
+        result.getThrottle().addConcurrency(concurrency);
+    }
 
+    /**
+     * Compare the files of a source folder against the last export. Files that did not change since the last export are added to the exported
+     * files and are not copied again.
+     * 
+     * @param fileType name of the files used in the messages
+     * @param sourceFolder
+     * @param files files of the source folder from the page index, can be null
+     * @param manifest manifest of the last export
+     * @param exportedFiles files that exist in the export folder
+     * @param digestTypes digests that must be known for unchanged files
+     * @param copiedFiles list to add the unchanged files to
+     * @return the files of the folder that need to be copied
+     */
+    private static FolderCopy selectChangedFiles(String fileType, Path sourceFolder, List<IndexedFile> files, ExportManifest manifest,
+            Map<String, IndexedFile> exportedFiles, List<DigestType> digestTypes, List<CopiedFile> copiedFiles) {
+        List<IndexedFile> changedFiles = new ArrayList<>();
+        if (files == null) {
+            return new FolderCopy(fileType, sourceFolder, changedFiles);
+        }
+        for (IndexedFile file : files) {
+            CopiedFile unchanged = manifest.getUnchangedFile(file.getName(), file.getSize(), file.getLastModified(), digestTypes);
+            IndexedFile target = exportedFiles.get(file.getName());
+            if (unchanged != null && target != null && target.getSize() == unchanged.getSize()) {
+                copiedFiles.add(unchanged);
             } else {
-                for (String imageName : imageFileNames) {
-                    Element resource = new Element(resourceString);
-                    content.addContent(resource);
-                    // create Label?
-                    Element imageFile = new Element(fileString);
-                    imageFile.setAttribute(nameString, imageName);
-                    resource.addContent(imageFile);
-                }
+                changedFiles.add(file);
             }
+        }
+        if (changedFiles.size() < files.size()) {
+            log.debug("Skipping " + (files.size() - changedFiles.size()) + " unchanged " + fileType);
+        }
+        return new FolderCopy(fileType, sourceFolder, changedFiles);
+    }
 
+    /**
+     * Add the files of a successful folder copy to the exported files
+     * 
+     * @param folderCopy
+     * @param copiedFiles
+     * @param exportResult
+     */
+    private static void addCopiedFiles(FolderCopy folderCopy, List<CopiedFile> copiedFiles, ExportResult exportResult) {
+        CopyResult result = folderCopy.result;
+        if (result.getLinkedFiles() > 0) {
+            log.debug("Linked " + result.getLinkedFiles() + " of " + result.getFiles().size() + " " + folderCopy.getFileType()
+                    + " instead of copying them");
         }
+        copiedFiles.addAll(result.getFiles());
+        exportResult.addBytes(result.getBytes());
+    }
 
-        // add one pdf entry for the all-pages-pdf
-        if (pdfFileNames != null) {
-            Element resource = new Element(resourceString);
-            Element file = new Element(fileString);
-            file.setAttribute(nameString, objectId + ".pdf");
-            resource.addContent(file);
-            content.addContent(resource);
+    /**
+     * Report the error of a failed folder copy as problem
+     * 
+     * @param folderCopy
+     * @param exportResult
+     */
+    private static void reportCopyFailure(FolderCopy folderCopy, ExportResult exportResult) {
+        CopyResult result = folderCopy.result;
+        String fileType = folderCopy.getFileType();
+        if (result.isChecksumError()) {
+            Helper.setFehlerMeldung("Checksum error while validating " + fileType + ", aborting.");
+            log.error("Checksum error while validating " + fileType + ": " + result.getFailedFile());
+            exportResult.addProblem("Checksum error while validating " + fileType + ": " + result.getFailedFile());
+        } else {
+            Helper.setFehlerMeldung("Error while copying " + fileType + ", aborting.");
+            log.error("Error while copying " + fileType + ": " + result.getFailedFile() + " (" + result.getErrorMessage() + ")");
+            exportResult.addProblem("Error while copying " + fileType + ": " + result.getFailedFile() + " (" + result.getErrorMessage() + ")");
         }
+    }
 
-        return doc;
+    private static ExecutorService createBranchExecutor(int branches) {
+        AtomicInteger counter = new AtomicInteger();
+        return Executors.newFixedThreadPool(branches, r -> {
+            Thread thread = new Thread(r, "stanford-export-branch-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Cancel all branches that are still running and wait until they stopped, so that no branch writes into the export folder afterwards
+     * 
+     * @param branches
+     * @param branchExecutor
+     */
+    private static void cancelBranches(List<? extends Future<?>> branches, ExecutorService branchExecutor) {
+        for (Future<?> branch : branches) {
+            branch.cancel(true);
+        }
+        branchExecutor.shutdownNow();
+        try {
+            if (!branchExecutor.awaitTermination(branchShutdownTimeout, TimeUnit.SECONDS)) {
+                log.warn("Cancelled export branches did not stop within " + branchShutdownTimeout + " seconds");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
     }
 
     /**
@@ -364,25 +899,31 @@ public class StanfordExportPlugin implements IExportPlugin, IPlugin {
      * @param pdfFileNames
      * @param exportPath
      * @param objectId
+     * @param pdfMerger
+     * @param digestTypes digests to compute for the merged file
+     * @return statistics of the merge with size and digests of the merged file
      * @throws IOException
      */
-    private void mergePdfFiles(Path pdfFolder, List<String> pdfFileNames, Path exportPath, String objectId) throws IOException {
+    private static MergeResult mergePdfFiles(Path pdfFolder, List<String> pdfFileNames, Path exportPath, String objectId, PdfMerger pdfMerger,
+            List<DigestType> digestTypes) throws IOException {
         try {
-            PDFMergerUtility PDFmerger = new PDFMergerUtility();
-            String exportPdf = exportPath.toString() + File.separator + objectId + ".pdf";
-            PDFmerger.setDestinationFileName(exportPdf);
-            // add all pdf files
+            List<Path> sourceFiles = new ArrayList<>(pdfFileNames.size());
             for (String pdf : pdfFileNames) {
-                File file = new File(pdfFolder.toFile(), pdf);
-                PDFmerger.addSource(file);
+                sourceFiles.add(pdfFolder.resolve(pdf));
             }
-            // merge the pdf files now
-            PDFmerger.mergeDocuments(IOUtils.createMemoryOnlyStreamCache());
+            MergeResult result = pdfMerger.merge(sourceFiles, exportPath.resolve(objectId + ".pdf"), digestTypes);
+            log.info("Merged " + result.getFiles() + " PDF files for " + objectId + " in " + result.getDurationMillis() + " ms, sampled heap usage "
+                    + result.getSampledHeapBytes() / (1024 * 1024) + " MB");
+            return result;
         } catch (Exception e) {
             throw new IOException("Error occured during the merge to a single PDF file", e);
         }
     }
 
+    private Path getTemporaryFolder() {
+        return temporaryFolder == null ? Paths.get(ConfigurationHelper.getInstance().getTemporaryFolder()) : temporaryFolder;
+    }
+
     public static void main(String[] args) {
 
         XMLConfiguration config = ConfigPlugins.getPluginConfig("intranda_export_stanford");
@@ -435,4 +976,21 @@ public class StanfordExportPlugin implements IExportPlugin, IPlugin {
     public List<String> getProblems() {
         return problems;
     }
+
+    /**
+     * Files of a source folder that need to be copied, the result is set by the branch that copies them
+     */
+    @Getter
+    private static class FolderCopy {
+        private final String fileType;
+        private final Path sourceFolder;
+        private final List<IndexedFile> changedFiles;
+        private CopyResult result;
+
+        FolderCopy(String fileType, Path sourceFolder, List<IndexedFile> changedFiles) {
+            this.fileType = fileType;
+            this.sourceFolder = sourceFolder;
+            this.changedFiles = changedFiles;
+        }
+    }
 }
@@ -0,0 +1,220 @@
+package de.intranda.goobi.plugins;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.zip.CRC32C;
+import java.util.zip.Checksum;
+
+import org.apache.commons.configuration.XMLConfiguration;
+
+import de.intranda.goobi.plugins.FileCopyEngine.CopiedFile;
+import lombok.Getter;
+import lombok.extern.log4j.Log4j;
+
+/**
+ * Waits until folders on a shared storage (e.g. NFS) are consistent, instead of sleeping for a fixed time.
+ *
+ * A folder is considered as ready when the number of files, their sizes and modification dates did not change for a configured number of
+ * consecutive polls. For the export folder the files can additionally be compared against the results of the copy phase.
+ */
+@Log4j
+public class StorageReadinessCheck {
+
+    @Getter
+    private final boolean enabled;
+    private final long pollInterval;
+    private final long timeout;
+    private final int stableChecks;
+    private final boolean verifyChecksums;
+
+    public StorageReadinessCheck(boolean enabled, long pollInterval, long timeout, int stableChecks, boolean verifyChecksums) {
+        this.enabled = enabled;
+        this.pollInterval = Math.max(pollInterval, 10);
+        this.timeout = timeout;
+        this.stableChecks = Math.max(stableChecks, 1);
+        this.verifyChecksums = verifyChecksums;
+    }
+
+    /**
+     * Read the settings from the &lt;readiness&gt; element of the plugin configuration
+     *
+     * @param config
+     * @return
+     */
+    public static StorageReadinessCheck fromConfig(XMLConfiguration config) {
+        return new StorageReadinessCheck(config.getBoolean("readiness/@enabled", true), config.getLong("readiness/@pollInterval", 1000),
+                config.getLong("readiness/@timeout", 120) * 1000, config.getInt("readiness/@stableChecks", 2),
+                config.getBoolean("readiness/@verifyChecksums", false));
+    }
+
+    /**
+     * Wait until the content of the given folders does not change anymore
+     *
+     * @param folders
+     * @return the result of the check
+     * @throws InterruptedException
+     */
+    public ReadinessResult waitForStableFolders(Collection<Path> folders) throws InterruptedException {
+        return waitForFolders(folders, null, null);
+    }
+
+    /**
+     * Wait until the content of the export folder is stable and contains all copied files with the expected size and modification date
+     *
+     * @param exportFolder folder the files were copied to
+     * @param copiedFiles result of the copy phase
+     * @param additionalFolders other folders of the export tree that must be stable
+     * @return the result of the check
+     * @throws InterruptedException
+     */
+    public ReadinessResult waitForExportFolder(Path exportFolder, Collection<CopiedFile> copiedFiles, Collection<Path> additionalFolders)
+            throws InterruptedException {
+        return waitForFolders(additionalFolders, exportFolder, copiedFiles);
+    }
+
+    private ReadinessResult waitForFolders(Collection<Path> folders, Path exportFolder, Collection<CopiedFile> copiedFiles)
+            throws InterruptedException {
+        long start = System.currentTimeMillis();
+        Map<Path, FileState> previous = null;
+        int stableRounds = 0;
+        while (true) {
+            Map<Path, FileState> current = new HashMap<>();
+            try {
+                for (Path folder : folders) {
+                    readFolder(folder, current);
+                }
+                if (exportFolder != null) {
+                    readFolder(exportFolder, current);
+                }
+            } catch (IOException e) {
+                log.debug("Folder is not readable yet: " + e.getMessage());
+                current = null;
+            }
+
+            if (current != null && current.equals(previous)) {
+                stableRounds++;
+            } else {
+                stableRounds = 0;
+            }
+            previous = current;
+
+            if (stableRounds >= stableChecks && (exportFolder == null || matchesCopiedFiles(exportFolder, current, copiedFiles))) {
+                return new ReadinessResult(true, System.currentTimeMillis() - start);
+            }
+            if (System.currentTimeMillis() - start >= timeout) {
+                return new ReadinessResult(false, System.currentTimeMillis() - start);
+            }
+            Thread.sleep(pollInterval);
+        }
+    }
+
+    private void readFolder(Path folder, Map<Path, FileState> states) throws IOException {
+        if (!Files.isDirectory(folder)) {
+            return;
+        }
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(folder)) {
+            for (Path file : stream) {
+                try {
+                    BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+                    if (attributes.isRegularFile()) {
+                        states.put(file, new FileState(attributes.size(), attributes.lastModifiedTime().toMillis()));
+                    }
+                } catch (NoSuchFileException e) {
+                    // file was removed in between, the next poll will notice the difference
+                }
+            }
+        }
+    }
+
+    private boolean matchesCopiedFiles(Path exportFolder, Map<Path, FileState> states, Collection<CopiedFile> copiedFiles) {
+        for (CopiedFile copiedFile : copiedFiles) {
+            Path file = exportFolder.resolve(copiedFile.getName());
+            FileState state = states.get(file);
+            if (state == null || state.size != copiedFile.getSize() || state.lastModified != copiedFile.getLastModified()) {
+                log.debug("Export file is not ready yet: " + file);
+                return false;
+            }
+        }
+        if (verifyChecksums) {
+            for (CopiedFile copiedFile : copiedFiles) {
+                if (!copiedFile.hasChecksum()) {
+                    // linked files are the source files themselves, size and date were compared above
+                    continue;
+                }
+                Path file = exportFolder.resolve(copiedFile.getName());
+                try {
+                    if (checksum(file) != copiedFile.getChecksum()) {
+                        log.debug("Checksum of export file does not match yet: " + file);
+                        return false;
+                    }
+                } catch (IOException e) {
+                    log.debug("Export file is not readable yet: " + file);
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private static long checksum(Path file) throws IOException {
+        Checksum checksum = new CRC32C();
+        ByteBuffer buffer = ByteBuffer.allocate(1024 * 1024);
+        try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+            while (in.read(buffer) != -1) {
+                buffer.flip();
+                checksum.update(buffer);
+                buffer.clear();
+            }
+        }
+        return checksum.getValue();
+    }
+
+    private static class FileState {
+        private final long size;
+        private final long lastModified;
+
+        FileState(long size, long lastModified) {
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof FileState)) {
+                return false;
+            }
+            FileState other = (FileState) obj;
+            return size == other.size && lastModified == other.lastModified;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(size, lastModified);
+        }
+    }
+
+    /**
+     * Result of a readiness check
+     */
+    @Getter
+    public static class ReadinessResult {
+        private final boolean ready;
+        private final long waitedMillis;
+
+        public ReadinessResult(boolean ready, long waitedMillis) {
+            this.ready = ready;
+            this.waitedMillis = waitedMillis;
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package de.intranda.goobi.plugins;
+
+import org.apache.commons.configuration.XMLConfiguration;
+
+import lombok.extern.log4j.Log4j;
+
+/**
+ * Ways to transfer a file into the export folder.
+ */
+@Log4j
+public enum TransferStrategy {
+
+    /** use a hard link if source and target are on the same file store, otherwise a reflink if supported, otherwise a kernel side copy */
+    AUTO,
+    /** create a hard link to the source file, only possible on the same file system */
+    HARDLINK,
+    /** create a copy on write clone of the source file, only possible on file systems like btrfs, xfs or zfs */
+    REFLINK,
+    /** copy the data inside of the kernel without reading it into the JVM */
+    TRANSFER,
+    /** copy the data through a buffer of the JVM */
+    COPY;
+
+    /**
+     * Links share the data with the source file, so they don't need to be verified
+     */
+    public boolean isLink() {
+        return this == HARDLINK || this == REFLINK;
+    }
+
+    /**
+     * Read the strategy from the strategy attribute of the &lt;copy&gt; element
+     *
+     * @param config
+     * @return the configured strategy, AUTO if nothing or an unknown value is configured
+     */
+    public static TransferStrategy fromConfig(XMLConfiguration config) {
+        String value = config.getString("copy/@strategy", "auto");
+        for (TransferStrategy strategy : values()) {
+            if (strategy.name().equalsIgnoreCase(value.trim())) {
+                return strategy;
+            }
+        }
+        log.warn("Unknown copy strategy " + value + ", using auto");
+        return AUTO;
+    }
+}
@@ -0,0 +1,31 @@
+package de.intranda.goobi.plugins;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+
+import org.junit.Test;
+
+import jakarta.ws.rs.ProcessingException;
+
+/**
+ * The POST request is only repeated if it certainly did not reach the server
+ */
+public class AccessionApiClientTest {
+
+    @Test
+    public void testConnectFailuresAreRetried() {
+        assertTrue(AccessionApiClient.isConnectFailure(new ProcessingException(new ConnectException("Connection refused"))));
+        assertTrue(AccessionApiClient.isConnectFailure(new ProcessingException(new UnknownHostException("sdr-api.example.org"))));
+        assertTrue(AccessionApiClient.isConnectFailure(new ProcessingException(new RuntimeException(new ConnectException("nested")))));
+    }
+
+    @Test
+    public void testReadTimeoutIsNotRetried() {
+        assertFalse(AccessionApiClient.isConnectFailure(new ProcessingException(new SocketTimeoutException("Read timed out"))));
+        assertFalse(AccessionApiClient.isConnectFailure(new ProcessingException("Unexpected end of stream")));
+    }
+}
@@ -0,0 +1,79 @@
+package de.intranda.goobi.plugins;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.Properties;
+
+import org.junit.Test;
+
+import de.intranda.goobi.plugins.AccessionApiClient.AccessionResponse;
+import de.intranda.goobi.plugins.AccessionQueue.Outcome;
+
+/**
+ * Queued requests must only be given up if the API rejects them
+ */
+public class AccessionQueueTest {
+
+    private static final long now = 1_700_000_000_000L;
+    private static final long retryDelay = 300_000;
+    private static final long maxRetryDelay = 3_600_000;
+
+    @Test
+    public void testSuccess() {
+        Properties request = new Properties();
+        assertEquals(Outcome.DELIVERED, AccessionQueue.recordResponse(request, new AccessionResponse(202, "Accepted", 1), now, retryDelay,
+                maxRetryDelay));
+        assertEquals("1", request.getProperty("attempts"));
+    }
+
+    @Test
+    public void testClientErrorFails() {
+        for (int statusCode : new int[] { 400, 401, 404, 422 }) {
+            Properties request = new Properties();
+            request.setProperty("attempts", "3");
+            assertEquals(Outcome.FAILED, AccessionQueue.recordResponse(request, new AccessionResponse(statusCode, "Client error", 1), now,
+                    retryDelay, maxRetryDelay));
+            assertEquals("4", request.getProperty("attempts"));
+            assertEquals(statusCode + " Client error", request.getProperty("lastResult"));
+        }
+    }
+
+    @Test
+    public void testServerErrorIsRetriedWithoutLimit() {
+        Properties request = new Properties();
+        for (int attempt = 1; attempt <= 100; attempt++) {
+            assertEquals(Outcome.RETRY, AccessionQueue.recordResponse(request, new AccessionResponse(503, "Service Unavailable", 1), now,
+                    retryDelay, maxRetryDelay));
+            assertEquals(String.valueOf(attempt), request.getProperty("attempts"));
+        }
+        // the delay doubles up to the maximum
+        assertEquals(String.valueOf(now + maxRetryDelay), request.getProperty("nextAttempt"));
+
+        Properties connectionError = new Properties();
+        assertEquals(Outcome.RETRY, AccessionQueue.recordResponse(connectionError, new AccessionResponse(0, "Connection refused", 1), now,
+                retryDelay, maxRetryDelay));
+        assertEquals(String.valueOf(now + retryDelay), connectionError.getProperty("nextAttempt"));
+    }
+
+    @Test
+    public void testOpenCircuitIsNotCounted() {
+        Properties request = new Properties();
+        request.setProperty("attempts", "2");
+        AccessionResponse rejected = new AccessionResponse(0, "Accession API is not available, circuit breaker is open", 0);
+        assertEquals(Outcome.RETRY, AccessionQueue.recordResponse(request, rejected, now, retryDelay, maxRetryDelay));
+        assertEquals("2", request.getProperty("attempts"));
+        assertNull(request.getProperty("lastAttempt"));
+    }
+
+    @Test
+    public void testRetryDelay() {
+        assertEquals(retryDelay, AccessionQueue.getRetryDelay(0, retryDelay, maxRetryDelay));
+        assertEquals(retryDelay, AccessionQueue.getRetryDelay(1, retryDelay, maxRetryDelay));
+        assertEquals(2 * retryDelay, AccessionQueue.getRetryDelay(2, retryDelay, maxRetryDelay));
+        assertEquals(maxRetryDelay, AccessionQueue.getRetryDelay(5, retryDelay, maxRetryDelay));
+        assertEquals(maxRetryDelay, AccessionQueue.getRetryDelay(Integer.MAX_VALUE, retryDelay, maxRetryDelay));
+        // a maximum below the initial delay does not shorten it
+        assertEquals(retryDelay, AccessionQueue.getRetryDelay(3, retryDelay, 1000));
+    }
+}
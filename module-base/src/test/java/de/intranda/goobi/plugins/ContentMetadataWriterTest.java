@@ -0,0 +1,271 @@
+package de.intranda.goobi.plugins;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.jdom2.Document;
+import org.jdom2.Element;
+import org.jdom2.output.Format;
+import org.jdom2.output.XMLOutputter;
+import org.junit.Test;
+
+/**
+ * The streaming writer must create exactly the same bytes as the JDOM based implementation it replaced
+ */
+public class ContentMetadataWriterTest {
+
+    private static final String objectId = "bb123cd4567";
+    private static final String contentType = "book";
+
+    @Test
+    public void testImagesOnly() throws IOException {
+        List<String> images = fileNames("00000001", 12, ".tif");
+        assertSameOutput(images, null, null, objectId);
+    }
+
+    @Test
+    public void testImagesAndAlto() throws IOException {
+        List<String> images = fileNames("00000001", 12, ".tif");
+        List<String> alto = fileNames("00000001", 12, ".xml");
+        assertSameOutput(images, alto, null, objectId);
+    }
+
+    @Test
+    public void testImagesAltoAndPdf() throws IOException {
+        List<String> images = fileNames("00000001", 12, ".tif");
+        List<String> alto = fileNames("00000001", 12, ".xml");
+        List<String> pdf = fileNames("00000001", 12, ".pdf");
+        assertSameOutput(images, alto, pdf, objectId);
+    }
+
+    @Test
+    public void testImagesAndPdfWithoutAlto() throws IOException {
+        // volumes without OCR keep the layout with the images only
+        List<String> images = fileNames("00000001", 12, ".tif");
+        List<String> pdf = fileNames("00000001", 12, ".pdf");
+        assertSameOutput(images, null, pdf, objectId);
+        assertSameOutput(images, new ArrayList<>(), pdf, objectId);
+    }
+
+    @Test
+    public void testImagesWithoutAlto() throws IOException {
+        // an empty ALTO folder gives the same layout as the baseline
+        List<String> images = fileNames("00000001", 12, ".tif");
+        assertSameOutput(images, new ArrayList<>(), null, objectId);
+    }
+
+    @Test
+    public void testPagedLayout() throws IOException {
+        // with equal numbers of files the pages joined by name are the layout of the baseline
+        List<String> images = fileNames("00000001", 12, ".tif");
+        List<String> alto = fileNames("00000001", 12, ".xml");
+        List<String> pdf = fileNames("00000001", 12, ".pdf");
+        assertArrayEquals(toBytes(createMetadataFile(contentType, images, alto, pdf, objectId)),
+                toBytes(createPagedMetadataFile(contentType, images, alto, pdf, objectId)));
+        assertArrayEquals(toBytes(createMetadataFile(contentType, images, alto, null, objectId)),
+                toBytes(createPagedMetadataFile(contentType, images, alto, null, objectId)));
+    }
+
+    @Test
+    public void testMoreImagesThanAlto() throws IOException {
+        // the baseline dropped all ALTO files, the pages keep the ALTO files that exist
+        List<String> images = fileNames("00000001", 12, ".tif");
+        List<String> alto = fileNames("00000001", 10, ".xml");
+        assertPagedOutput(images, alto, null);
+        assertPagedOutput(images, alto, fileNames("00000001", 12, ".pdf"));
+
+        List<String> missingPage = new ArrayList<>(fileNames("00000001", 12, ".xml"));
+        missingPage.remove("00000005.xml");
+        assertPagedOutput(images, missingPage, fileNames("00000001", 12, ".pdf"));
+    }
+
+    @Test
+    public void testMoreAltoThanImages() throws IOException {
+        // pages without image keep their position
+        List<String> images = new ArrayList<>(fileNames("00000001", 12, ".tif"));
+        images.remove("00000003.tif");
+        List<String> alto = fileNames("00000001", 12, ".xml");
+        assertPagedOutput(images, alto, null);
+        assertPagedOutput(fileNames("00000001", 5, ".tif"), alto, fileNames("00000001", 5, ".pdf"));
+    }
+
+    @Test
+    public void testEscaping() throws IOException {
+        List<String> images = new ArrayList<>();
+        images.add("a&b.tif");
+        images.add("c<d>.tif");
+        images.add("quote\"tab\tline\nreturn\r.tif");
+        images.add("umlaut_äöü.tif");
+        List<String> alto = new ArrayList<>();
+        alto.add("a&b.xml");
+        alto.add("c<d>.xml");
+        alto.add("quote\"tab\tline\nreturn\r.xml");
+        alto.add("umlaut_äöü.xml");
+        assertSameOutput(images, null, null, "id&<>\"");
+        assertSameOutput(images, alto, null, "id&<>\"");
+    }
+
+    @Test
+    public void testEmptyVolume() throws IOException {
+        assertSameOutput(new ArrayList<>(), null, null, objectId);
+        assertSameOutput(null, null, null, objectId);
+    }
+
+    private static List<String> fileNames(String first, int count, String extension) {
+        List<String> names = new ArrayList<>();
+        int start = Integer.parseInt(first);
+        for (int i = 0; i < count; i++) {
+            names.add(String.format("%08d", start + i) + extension);
+        }
+        return names;
+    }
+
+    private static void assertSameOutput(List<String> images, List<String> alto, List<String> pdf, String objectId) throws IOException {
+        assertOutput(createMetadataFile(contentType, images, alto, pdf, objectId), images, alto, pdf, objectId);
+    }
+
+    private static void assertPagedOutput(List<String> images, List<String> alto, List<String> pdf) throws IOException {
+        assertOutput(createPagedMetadataFile(contentType, images, alto, pdf, objectId), images, alto, pdf, objectId);
+    }
+
+    private static void assertOutput(Document document, List<String> images, List<String> alto, List<String> pdf, String objectId)
+            throws IOException {
+        byte[] expected = toBytes(document);
+        ByteArrayOutputStream actual = new ByteArrayOutputStream();
+        try (ContentMetadataWriter writer = new ContentMetadataWriter(new OutputStreamWriter(actual, StandardCharsets.UTF_8))) {
+            writer.writeContent(contentType, images, alto, pdf, objectId);
+        }
+        assertArrayEquals(new String(expected, StandardCharsets.UTF_8), expected, actual.toByteArray());
+    }
+
+    private static byte[] toBytes(Document document) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        XMLOutputter xmlOutput = new XMLOutputter();
+        xmlOutput.setFormat(Format.getPrettyFormat());
+        xmlOutput.output(document, out);
+        return out.toByteArray();
+    }
+
+    /**
+     * The layout of the baseline with ALTO files, but the files are joined into pages by their name, so that each page lists the files that exist
+     * for it
+     */
+    private static Document createPagedMetadataFile(String contentType, List<String> imageFileNames, List<String> altoFileNames,
+            List<String> pdfFileNames, String objectId) {
+        Map<String, String[]> pages = new TreeMap<>();
+        addPageFiles(pages, imageFileNames, 0);
+        addPageFiles(pages, pdfFileNames, 1);
+        addPageFiles(pages, altoFileNames, 2);
+
+        Document doc = new Document();
+        Element content = new Element("content");
+        doc.setRootElement(content);
+        content.setAttribute("type", contentType);
+        int index = 0;
+        for (String[] files : pages.values()) {
+            Element resource = new Element("resource");
+            content.addContent(resource);
+            Element label = new Element("label");
+            label.setText("Page " + (++index));
+            resource.addContent(label);
+            for (int i = 0; i < files.length; i++) {
+                if (files[i] != null) {
+                    Element file = new Element("file");
+                    file.setAttribute("name", files[i]);
+                    if (i == 2) {
+                        file.setAttribute("role", "transcription");
+                        file.setAttribute("publish", "yes");
+                        file.setAttribute("preserve", "yes");
+                        file.setAttribute("shelve", "yes");
+                    }
+                    resource.addContent(file);
+                }
+            }
+        }
+
+        if (pdfFileNames != null) {
+            Element resource = new Element("resource");
+            Element file = new Element("file");
+            file.setAttribute("name", objectId + ".pdf");
+            resource.addContent(file);
+            content.addContent(resource);
+        }
+        return doc;
+    }
+
+    private static void addPageFiles(Map<String, String[]> pages, List<String> fileNames, int position) {
+        if (fileNames == null) {
+            return;
+        }
+        for (String fileName : fileNames) {
+            String name = fileName.substring(0, fileName.lastIndexOf('.'));
+            pages.computeIfAbsent(name, key -> new String[3])[position] = fileName;
+        }
+    }
+
+    /**
+     * The implementation of the plugin before the streaming writer was introduced
+     */
+    private static Document createMetadataFile(String contentType, List<String> imageFileNames, List<String> altoFileNames,
+            List<String> pdfFileNames, String objectId) {
+        Document doc = new Document();
+        Element content = new Element("content");
+        doc.setRootElement(content);
+        content.setAttribute("type", contentType);
+
+        if (imageFileNames != null) {
+            if (altoFileNames != null && imageFileNames.size() == altoFileNames.size()) {
+                for (int index = 0; index < imageFileNames.size(); index++) {
+                    Element resource = new Element("resource");
+                    content.addContent(resource);
+
+                    Element label = new Element("label");
+                    label.setText("Page " + (index + 1));
+                    Element imageFile = new Element("file");
+                    imageFile.setAttribute("name", imageFileNames.get(index));
+                    resource.addContent(label);
+                    resource.addContent(imageFile);
+
+                    if (pdfFileNames != null) {
+                        Element pdfFile = new Element("file");
+                        pdfFile.setAttribute("name", pdfFileNames.get(index));
+                        resource.addContent(pdfFile);
+                    }
+
+                    Element altoFile = new Element("file");
+                    altoFile.setAttribute("name", altoFileNames.get(index));
+                    altoFile.setAttribute("role", "transcription");
+                    altoFile.setAttribute("publish", "yes");
+                    altoFile.setAttribute("preserve", "yes");
+                    altoFile.setAttribute("shelve", "yes");
+                    resource.addContent(altoFile);
+                }
+            } else {
+                for (String imageName : imageFileNames) {
+                    Element resource = new Element("resource");
+                    content.addContent(resource);
+                    Element imageFile = new Element("file");
+                    imageFile.setAttribute("name", imageName);
+                    resource.addContent(imageFile);
+                }
+            }
+        }
+
+        if (pdfFileNames != null) {
+            Element resource = new Element("resource");
+            Element file = new Element("file");
+            file.setAttribute("name", objectId + ".pdf");
+            resource.addContent(file);
+            content.addContent(resource);
+        }
+        return doc;
+    }
+}
@@ -0,0 +1,129 @@
+package de.intranda.goobi.plugins;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.configuration.XMLConfiguration;
+import org.apache.commons.configuration.tree.xpath.XPathExpressionEngine;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import de.intranda.goobi.plugins.FileCopyEngine.CopiedFile;
+
+/**
+ * The journal must survive an export that was aborted while an entry was written
+ */
+public class ExportJournalTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private XMLConfiguration config;
+    private Path stateFolder;
+    private Path journalFile;
+
+    @Before
+    public void setUp() throws IOException {
+        config = new XMLConfiguration();
+        config.setProperty("checkpoint[@enabled]", true);
+        config.setExpressionEngine(new XPathExpressionEngine());
+        stateFolder = temporaryFolder.newFolder("state").toPath();
+        journalFile = stateFolder.resolve("exportJournal.txt");
+    }
+
+    @Test
+    public void testResume() throws IOException {
+        Map<String, String> digests = new LinkedHashMap<>();
+        digests.put("sha256", "9f86d081884c7d659a2feaa0c55ad015a3bf4f1b2b0b822cd15d6c15b0f00a08");
+        digests.put("md5", "098f6bcd4621d373cade4e832627b4f6");
+        try (ExportJournal journal = ExportJournal.fromConfig(config, stateFolder)) {
+            assertFalse(journal.isResumed());
+            journal.fileCopied(new CopiedFile("00000001.tif", 1000, 1_700_000_000_000L, 0xfedcba9876543210L, digests));
+            journal.fileCopied(new CopiedFile("00000001.pdf", 200, 1_700_000_000_000L, CopiedFile.unknownChecksum));
+            journal.metadataWritten(new CopiedFile("contentMetadata.xml", 300, 1_700_000_000_001L, 42));
+        }
+
+        try (ExportJournal journal = ExportJournal.fromConfig(config, stateFolder)) {
+            assertTrue(journal.isResumed());
+            assertTrue(journal.isMergePending());
+            assertFalse(journal.isAccessionDone());
+            assertEquals(List.of("00000001.tif", "00000001.pdf"), List.copyOf(journal.getCopiedFiles().keySet()));
+
+            CopiedFile image = journal.getCopiedFiles().get("00000001.tif");
+            assertEquals(1000, image.getSize());
+            assertEquals(1_700_000_000_000L, image.getLastModified());
+            assertEquals(0xfedcba9876543210L, image.getChecksum());
+            assertEquals(digests, image.getDigests());
+            assertEquals(List.of("sha256", "md5"), List.copyOf(image.getDigests().keySet()));
+            assertFalse(journal.getCopiedFiles().get("00000001.pdf").hasChecksum());
+            assertEquals(42, journal.getMetadataFile().getChecksum());
+            assertNull(journal.getMergedFile());
+
+            journal.mergeFinished(new CopiedFile("bb123cd4567.pdf", 5000, 1_700_000_000_002L, 7));
+            journal.accessionSucceeded();
+        }
+
+        try (ExportJournal journal = ExportJournal.fromConfig(config, stateFolder)) {
+            assertFalse(journal.isMergePending());
+            assertTrue(journal.isAccessionDone());
+            assertEquals(5000, journal.getMergedFile().getSize());
+            journal.complete();
+        }
+        assertFalse(Files.exists(journalFile));
+    }
+
+    @Test
+    public void testTruncatedLastLine() throws IOException {
+        try (ExportJournal journal = ExportJournal.fromConfig(config, stateFolder)) {
+            journal.fileCopied(new CopiedFile("00000001.tif", 1000, 1_700_000_000_000L, 1));
+            journal.fileCopied(new CopiedFile("00000002.tif", 1000, 1_700_000_000_000L, 2));
+        }
+        // the JVM ended while the third entry was written
+        Files.writeString(journalFile, "file\t00000003.tif\t10", StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+
+        try (ExportJournal journal = ExportJournal.fromConfig(config, stateFolder)) {
+            assertEquals(List.of("00000001.tif", "00000002.tif"), List.copyOf(journal.getCopiedFiles().keySet()));
+            // the partial line was removed, so the next entry starts on a new line
+            assertTrue(Files.readString(journalFile, StandardCharsets.UTF_8).endsWith("\n"));
+            journal.fileCopied(new CopiedFile("00000003.tif", 1000, 1_700_000_000_000L, 3));
+        }
+
+        try (ExportJournal journal = ExportJournal.fromConfig(config, stateFolder)) {
+            assertEquals(List.of("00000001.tif", "00000002.tif", "00000003.tif"), List.copyOf(journal.getCopiedFiles().keySet()));
+            assertEquals(3, journal.getCopiedFiles().get("00000003.tif").getChecksum());
+        }
+    }
+
+    @Test
+    public void testInvalidLinesAreIgnored() throws IOException {
+        Files.writeString(journalFile, "file\t00000001.tif\t1000\t1700000000000\t1\t\n" + "file\tbroken\tsize\t0\t0\t\n" + "unknown entry\n",
+                StandardCharsets.UTF_8);
+        try (ExportJournal journal = ExportJournal.fromConfig(config, stateFolder)) {
+            assertEquals(List.of("00000001.tif"), List.copyOf(journal.getCopiedFiles().keySet()));
+        }
+    }
+
+    @Test
+    public void testDisabled() throws IOException {
+        XMLConfiguration disabledConfig = new XMLConfiguration();
+        disabledConfig.setExpressionEngine(new XPathExpressionEngine());
+        try (ExportJournal journal = ExportJournal.fromConfig(disabledConfig, stateFolder)) {
+            journal.fileCopied(new CopiedFile("00000001.tif", 1000, 1_700_000_000_000L, 1));
+            journal.accessionSucceeded();
+        }
+        assertFalse(Files.exists(journalFile));
+    }
+}
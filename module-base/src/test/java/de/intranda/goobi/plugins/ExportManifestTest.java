@@ -0,0 +1,125 @@
+package de.intranda.goobi.plugins;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import de.intranda.goobi.plugins.FileCopyEngine.CopiedFile;
+
+/**
+ * Only files that are unchanged since the last export and have all configured digests may be skipped
+ */
+public class ExportManifestTest {
+
+    private static final long lastModified = 1_700_000_000_000L;
+    private static final List<DigestType> sha256 = Collections.singletonList(DigestType.SHA256);
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private Path manifestFile;
+
+    @Before
+    public void setUp() throws IOException {
+        manifestFile = temporaryFolder.newFolder("state").toPath().resolve("exportManifest.xml");
+    }
+
+    @Test
+    public void testUnchangedFilesAreSkipped() throws IOException {
+        ExportManifest manifest = new ExportManifest();
+        manifest.addFiles(Arrays.asList(createFile("00000001.tif", 1000), createFile("00000002.tif", 2000),
+                new CopiedFile("00000003.tif", 3000, lastModified, CopiedFile.unknownChecksum)));
+        manifest.setMergedFile(createFile("bb123cd4567.pdf", 5000));
+        manifest.save(manifestFile);
+        assertFalse(Files.exists(manifestFile.resolveSibling("exportManifest.xml.tmp")));
+
+        ExportManifest loaded = ExportManifest.load(manifestFile);
+        assertEquals(List.of("00000001.tif", "00000002.tif", "00000003.tif"), List.copyOf(loaded.getFileNames()));
+        CopiedFile unchanged = loaded.getUnchangedFile("00000001.tif", 1000, lastModified, sha256);
+        assertNotNull(unchanged);
+        assertEquals(0x89abcdefL, unchanged.getChecksum());
+        assertEquals(createFile("00000001.tif", 1000).getDigests(), unchanged.getDigests());
+        assertNotNull(loaded.getUnchangedMergedFile(5000, lastModified, sha256));
+
+        // size or modification date changed
+        assertNull(loaded.getUnchangedFile("00000002.tif", 2001, lastModified, sha256));
+        assertNull(loaded.getUnchangedFile("00000002.tif", 2000, lastModified + 1, sha256));
+        assertNull(loaded.getUnchangedMergedFile(5001, lastModified, sha256));
+        // new file
+        assertNull(loaded.getUnchangedFile("00000004.tif", 1000, lastModified, sha256));
+
+        // a linked file without digests has no checksum
+        CopiedFile linked = loaded.getUnchangedFile("00000003.tif", 3000, lastModified, Collections.emptyList());
+        assertNotNull(linked);
+        assertFalse(linked.hasChecksum());
+    }
+
+    @Test
+    public void testChangedDigestsForceCopy() throws IOException {
+        ExportManifest manifest = new ExportManifest();
+        manifest.addFiles(Collections.singletonList(createFile("00000001.tif", 1000)));
+        manifest.setMergedFile(createFile("bb123cd4567.pdf", 5000));
+        manifest.save(manifestFile);
+        ExportManifest loaded = ExportManifest.load(manifestFile);
+
+        assertNotNull(loaded.getUnchangedFile("00000001.tif", 1000, lastModified, Collections.emptyList()));
+        // md5 was added to the configuration after the last export
+        List<DigestType> digestTypes = Arrays.asList(DigestType.SHA256, DigestType.MD5);
+        assertNull(loaded.getUnchangedFile("00000001.tif", 1000, lastModified, digestTypes));
+        assertNull(loaded.getUnchangedMergedFile(5000, lastModified, digestTypes));
+        assertNull(loaded.getUnchangedFile("00000001.tif", 1000, lastModified, Collections.singletonList(DigestType.SHA1)));
+    }
+
+    @Test
+    public void testMissingFile() {
+        ExportManifest manifest = ExportManifest.load(manifestFile);
+        assertTrue(manifest.getFileNames().isEmpty());
+        assertNull(manifest.getUnchangedMergedFile(5000, lastModified, Collections.emptyList()));
+    }
+
+    @Test
+    public void testCorruptFile() throws IOException {
+        ExportManifest manifest = new ExportManifest();
+        manifest.addFiles(Collections.singletonList(createFile("00000001.tif", 1000)));
+        manifest.setMergedFile(createFile("bb123cd4567.pdf", 5000));
+        manifest.save(manifestFile);
+
+        // truncated xml
+        String xml = Files.readString(manifestFile, StandardCharsets.UTF_8);
+        Files.writeString(manifestFile, xml.substring(0, xml.length() / 2), StandardCharsets.UTF_8);
+        assertEmpty(ExportManifest.load(manifestFile));
+
+        // valid xml with an invalid value
+        Files.writeString(manifestFile, xml.replace("size=\"1000\"", "size=\"unknown\""), StandardCharsets.UTF_8);
+        assertEmpty(ExportManifest.load(manifestFile));
+    }
+
+    private static void assertEmpty(ExportManifest manifest) {
+        assertTrue(manifest.getFileNames().isEmpty());
+        assertNull(manifest.getUnchangedFile("00000001.tif", 1000, lastModified, Collections.emptyList()));
+        assertNull(manifest.getUnchangedMergedFile(5000, lastModified, Collections.emptyList()));
+    }
+
+    private static CopiedFile createFile(String name, long size) {
+        Map<String, String> digests = new LinkedHashMap<>();
+        digests.put("sha256", "9f86d081884c7d659a2feaa0c55ad015a3bf4f1b2b0b822cd15d6c15b0f00a08");
+        return new CopiedFile(name, size, lastModified, 0x89abcdefL, digests);
+    }
+}
@@ -0,0 +1,218 @@
+package de.intranda.goobi.plugins;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import de.intranda.goobi.plugins.FileCopyEngine.CopiedFile;
+import de.intranda.goobi.plugins.FileCopyEngine.CopyResult;
+
+/**
+ * Each transfer strategy must produce the same files and digests as a plain copy
+ */
+public class FileCopyEngineTest {
+
+    private static final List<DigestType> digestTypes = Arrays.asList(DigestType.SHA256, DigestType.MD5, DigestType.SHA1);
+    private static final int bufferSize = 4096;
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private Path sourceFolder;
+    private Path targetFolder;
+    private List<String> fileNames;
+
+    @Before
+    public void setUp() throws IOException {
+        sourceFolder = temporaryFolder.newFolder("source").toPath();
+        targetFolder = temporaryFolder.newFolder("target").toPath();
+        fileNames = createFiles(sourceFolder);
+    }
+
+    @Test
+    public void testCopy() throws Exception {
+        CopyResult result = copy(TransferStrategy.COPY, digestTypes);
+        assertCopies(result, false);
+        assertEquals(0, result.getLinkedFiles());
+        for (String fileName : fileNames) {
+            assertFalse(Files.isSameFile(sourceFolder.resolve(fileName), targetFolder.resolve(fileName)));
+            assertEquals(Files.getLastModifiedTime(sourceFolder.resolve(fileName)), Files.getLastModifiedTime(targetFolder.resolve(fileName)));
+        }
+    }
+
+    @Test
+    public void testTransfer() throws Exception {
+        CopyResult result = copy(TransferStrategy.TRANSFER, digestTypes);
+        assertCopies(result, false);
+        assertEquals(0, result.getLinkedFiles());
+    }
+
+    @Test
+    public void testHardLink() throws Exception {
+        CopyResult result = copy(TransferStrategy.HARDLINK, digestTypes);
+        assertCopies(result, true);
+        assertEquals(fileNames.size(), result.getLinkedFiles());
+    }
+
+    @Test
+    public void testHardLinkWithoutDigests() throws Exception {
+        CopyResult result = copy(TransferStrategy.HARDLINK, Collections.emptyList());
+        assertTrue(result.isSuccessful());
+        assertEquals(fileNames.size(), result.getLinkedFiles());
+        for (CopiedFile file : result.getFiles()) {
+            // the data of links is not read without digests
+            assertFalse(file.hasChecksum());
+            assertTrue(file.getDigests().isEmpty());
+            assertEquals(Files.size(sourceFolder.resolve(file.getName())), file.getSize());
+        }
+    }
+
+    @Test
+    public void testHardLinkFallsBackToTransfer() throws Exception {
+        // hard links are not possible between different file stores
+        Path otherFileStore = Paths.get("/dev/shm");
+        assumeTrue(Files.isWritable(otherFileStore)
+                && !Files.getFileStore(otherFileStore).equals(Files.getFileStore(temporaryFolder.getRoot().toPath())));
+        Path otherSourceFolder = Files.createTempDirectory(otherFileStore, "filecopyenginetest");
+        try {
+            for (String fileName : fileNames) {
+                Files.copy(sourceFolder.resolve(fileName), otherSourceFolder.resolve(fileName));
+            }
+            sourceFolder = otherSourceFolder;
+            CopyResult result = copy(TransferStrategy.HARDLINK, digestTypes);
+            assertCopies(result, false);
+            assertEquals(0, result.getLinkedFiles());
+        } finally {
+            for (String fileName : fileNames) {
+                Files.deleteIfExists(otherSourceFolder.resolve(fileName));
+            }
+            Files.delete(otherSourceFolder);
+        }
+    }
+
+    @Test
+    public void testDigestsInConfiguredOrder() throws Exception {
+        // parallel digests of many small buffers must give the same result as a single pass
+        for (long parallelDigestThreshold : new long[] { 0, Long.MAX_VALUE }) {
+            try (FileCopyEngine engine = new FileCopyEngine(2, bufferSize, TransferStrategy.COPY, digestTypes, parallelDigestThreshold)) {
+                CopyResult result = engine.copyAndVerify(sourceFolder, fileNames, targetFolder);
+                assertTrue(result.isSuccessful());
+                for (CopiedFile file : result.getFiles()) {
+                    assertEquals(Arrays.asList("sha256", "md5", "sha1"), new ArrayList<>(file.getDigests().keySet()));
+                    assertDigests(file);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testMismatchCancelsRemainingFiles() throws Exception {
+        List<String> manyFiles = new ArrayList<>();
+        Random random = new Random(7);
+        for (int i = 1; i <= 50; i++) {
+            String fileName = String.format("%08d.tif", i);
+            createFile(sourceFolder.resolve(fileName), random, 256 * 1024);
+            manyFiles.add(fileName);
+        }
+        Path changedFile = sourceFolder.resolve(manyFiles.get(0));
+        // the first file is changed in the source after it was copied and before it is verified
+        AdaptiveConcurrency concurrency = new AdaptiveConcurrency(false, 1, 1, 2) {
+            private boolean changed = false;
+
+            @Override
+            public synchronized void record(long bytes, long nanos) {
+                if (!changed) {
+                    changed = true;
+                    try {
+                        Files.write(changedFile, new byte[] { 1, 2, 3 });
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }
+            }
+        };
+        try (FileCopyEngine engine = new FileCopyEngine(1, bufferSize, TransferStrategy.TRANSFER, Collections.emptyList(), Long.MAX_VALUE,
+                BandwidthLimiter.unlimited(), concurrency)) {
+            CopyResult result = engine.copyAndVerify(sourceFolder, manyFiles, targetFolder);
+            assertFalse(result.isSuccessful());
+            assertTrue(result.isChecksumError());
+            assertEquals(targetFolder.resolve(manyFiles.get(0)), result.getFailedFile());
+            assertTrue(result.getFiles().isEmpty());
+        }
+        int copied = 0;
+        for (String fileName : manyFiles) {
+            if (Files.exists(targetFolder.resolve(fileName))) {
+                copied++;
+            }
+        }
+        assertTrue("Files were copied after the mismatch: " + copied, copied < manyFiles.size() / 2);
+    }
+
+    private CopyResult copy(TransferStrategy strategy, List<DigestType> digests) throws InterruptedException {
+        try (FileCopyEngine engine = new FileCopyEngine(2, bufferSize, strategy, digests, 16 * 1024)) {
+            return engine.copyAndVerify(sourceFolder, fileNames, targetFolder);
+        }
+    }
+
+    private void assertCopies(CopyResult result, boolean linked) throws IOException {
+        assertTrue(result.getErrorMessage(), result.isSuccessful());
+        assertEquals(fileNames.size(), result.getFiles().size());
+        for (CopiedFile file : result.getFiles()) {
+            Path source = sourceFolder.resolve(file.getName());
+            Path target = targetFolder.resolve(file.getName());
+            assertEquals(linked, Files.isSameFile(source, target));
+            assertEquals(-1, Files.mismatch(source, target));
+            assertEquals(Files.size(source), file.getSize());
+            assertTrue(file.hasChecksum());
+            assertDigests(file);
+        }
+    }
+
+    private void assertDigests(CopiedFile file) throws IOException {
+        byte[] data = Files.readAllBytes(sourceFolder.resolve(file.getName()));
+        Map<String, String> digests = file.getDigests();
+        assertEquals(digestTypes.size(), digests.size());
+        for (DigestType digestType : digestTypes) {
+            MessageDigest digest = digestType.createDigest();
+            assertEquals(file.getName() + " " + digestType.getType(), DigestType.toHex(digest.digest(data)), digests.get(digestType.getType()));
+        }
+    }
+
+    private static List<String> createFiles(Path folder) throws IOException {
+        Random random = new Random(42);
+        // empty, smaller than a buffer, several buffers and above the threshold for parallel digests
+        int[] sizes = { 0, 1000, bufferSize, 3 * bufferSize + 17, 300 * 1024 };
+        List<String> fileNames = new ArrayList<>();
+        for (int i = 0; i < sizes.length; i++) {
+            String fileName = String.format("%08d.tif", i + 1);
+            createFile(folder.resolve(fileName), random, sizes[i]);
+            fileNames.add(fileName);
+        }
+        return fileNames;
+    }
+
+    private static void createFile(Path file, Random random, int size) throws IOException {
+        byte[] data = new byte[size];
+        random.nextBytes(data);
+        Files.write(file, data);
+    }
+}
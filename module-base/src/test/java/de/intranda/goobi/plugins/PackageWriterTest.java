@@ -0,0 +1,259 @@
+package de.intranda.goobi.plugins;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import de.intranda.goobi.plugins.FileCopyEngine.CopiedFile;
+
+/**
+ * Packages are read back with commons-compress and the gzip implementation of java
+ */
+public class PackageWriterTest {
+
+    private static final String objectId = "bb123cd4567";
+    // 40 characters, together with the folders the path inside of the package is longer than 100 bytes
+    private static final String longName = "page_0001_with_a_rather_long_file_name_a";
+
+    private Path folder;
+    private Path contentFolder;
+    private Path metadataFile;
+
+    @Before
+    public void setUp() throws IOException {
+        folder = Files.createTempDirectory("packagewritertest");
+        contentFolder = Files.createDirectories(folder.resolve("source"));
+        Random random = new Random(42);
+        createFile(contentFolder.resolve("00000001.tif"), random, 300 * 1024);
+        createFile(contentFolder.resolve("00000002.tif"), random, 1000);
+        createFile(contentFolder.resolve("empty.txt"), random, 0);
+        createFile(contentFolder.resolve(longName + longName + ".tif"), random, 512);
+        metadataFile = folder.resolve("contentMetadata.xml");
+        Files.write(metadataFile, "<content type=\"book\" />\r\n".getBytes(StandardCharsets.UTF_8));
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        try (Stream<Path> files = Files.walk(folder)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Test
+    public void testTar() throws IOException {
+        Path packageFile = writePackage(PackageMode.TAR, false, 1, Collections.emptyList());
+        assertEquals(0, Files.size(packageFile) % (512 * 20));
+        Map<String, byte[]> entries = readTar(packageFile, false);
+        assertPayload(entries, objectId + "/");
+        assertEquals(5, entries.size());
+    }
+
+    @Test
+    public void testTarGzip() throws IOException {
+        Path packageFile = writePackage(PackageMode.TAR, true, 1, Collections.emptyList());
+        assertTrue(packageFile.getFileName().toString().endsWith(".tar.gz"));
+        assertPayload(readTar(packageFile, true), objectId + "/");
+    }
+
+    @Test
+    public void testTarParallelGzip() throws IOException {
+        // blocks of 64 KB, so the package consists of several gzip members
+        Path packageFile = writePackage(PackageMode.TAR, true, 4, Collections.emptyList());
+        assertPayload(readTar(packageFile, true), objectId + "/");
+    }
+
+    @Test
+    public void testBagIt() throws IOException {
+        Path packageFile = writePackage(PackageMode.BAGIT, true, 2, Arrays.asList(DigestType.SHA256, DigestType.MD5));
+        Map<String, byte[]> entries = readTar(packageFile, true);
+        String bagFolder = objectId + "/";
+        assertPayload(entries, bagFolder + "data/");
+
+        for (DigestType digestType : Arrays.asList(DigestType.SHA256, DigestType.MD5)) {
+            // every payload file is listed in the manifest with its digest
+            Map<String, String> manifest = readManifest(entries, bagFolder + "manifest-" + digestType.getType() + ".txt");
+            int payloadFiles = 0;
+            for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+                if (entry.getKey().startsWith(bagFolder + "data/")) {
+                    payloadFiles++;
+                    String path = entry.getKey().substring(bagFolder.length());
+                    assertEquals(path, digest(digestType, entry.getValue()), manifest.get(path));
+                }
+            }
+            assertEquals(payloadFiles, manifest.size());
+
+            // the tag manifest covers all tag files except the tag manifests
+            Map<String, String> tagManifest = readManifest(entries, bagFolder + "tagmanifest-" + digestType.getType() + ".txt");
+            assertEquals(4, tagManifest.size());
+            for (String tagFile : Arrays.asList("bagit.txt", "bag-info.txt", "manifest-sha256.txt", "manifest-md5.txt")) {
+                assertEquals(tagFile, digest(digestType, entries.get(bagFolder + tagFile)), tagManifest.get(tagFile));
+            }
+        }
+
+        String bagInfo = new String(entries.get(bagFolder + "bag-info.txt"), StandardCharsets.UTF_8);
+        long payloadBytes = 0;
+        for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+            if (entry.getKey().startsWith(bagFolder + "data/")) {
+                payloadBytes += entry.getValue().length;
+            }
+        }
+        assertTrue(bagInfo, bagInfo.contains("Payload-Oxum: " + payloadBytes + ".5\n"));
+        assertEquals("BagIt-Version: 1.0\nTag-File-Character-Encoding: UTF-8\n", new String(entries.get(bagFolder + "bagit.txt"),
+                StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testReturnedDigests() throws IOException {
+        Path packageFile = folder.resolve("target").resolve(objectId + ".tar");
+        try (PackageWriter writer = new PackageWriter(PackageMode.TAR, packageFile, objectId, Arrays.asList(DigestType.SHA1), false, 1, 6,
+                64 * 1024, 8 * 1024)) {
+            Path source = contentFolder.resolve("00000001.tif");
+            CopiedFile file = writer.addContentFile(source, -1);
+            assertEquals(Files.size(source), file.getSize());
+            assertEquals(digest(DigestType.SHA1, Files.readAllBytes(source)), file.getDigests().get("sha1"));
+            writer.publish();
+        }
+    }
+
+    @Test
+    public void testLongName() throws IOException {
+        String name = objectId + "/content/" + longName + longName + ".tif";
+        assertTrue(name.getBytes(StandardCharsets.UTF_8).length > 100);
+        TarArchiveEntry entry = new TarArchiveEntry(PackageWriter.createHeader(name, 10, 0));
+        assertEquals(name, entry.getName());
+    }
+
+    @Test
+    public void testNameTooLong() {
+        StringBuilder name = new StringBuilder(objectId).append("/content/");
+        for (int i = 0; i < 4; i++) {
+            name.append(longName);
+        }
+        try {
+            PackageWriter.createHeader(name.toString(), 10, 0);
+            fail("Name without a possible split was accepted");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testLargeFileSize() throws IOException {
+        // the octal field holds up to 8 GB - 1, larger sizes use the binary format
+        long maxOctal = 8L * 1024 * 1024 * 1024 - 1;
+        for (long size : new long[] { 0, 1, maxOctal, maxOctal + 1, 9L * 1024 * 1024 * 1024, 1L << 40 }) {
+            byte[] header = PackageWriter.createHeader(objectId + "/content/00000001.tif", size, 1_700_000_000_000L);
+            assertEquals(512, header.length);
+            TarArchiveEntry entry = new TarArchiveEntry(header);
+            assertEquals(size, entry.getSize());
+            assertEquals(1_700_000_000_000L, entry.getModTime().getTime());
+            assertEquals(size <= maxOctal, header[124] != (byte) 0x80);
+        }
+    }
+
+    @Test
+    public void testIncompletePackageIsRemoved() throws IOException {
+        Path packageFile = folder.resolve("target").resolve(objectId + ".tar");
+        try (PackageWriter writer = new PackageWriter(PackageMode.TAR, packageFile, objectId, Collections.emptyList(), false, 1, 6, 64 * 1024,
+                8 * 1024)) {
+            writer.addContentFile(contentFolder.resolve("00000002.tif"), -1);
+        }
+        assertFalse(Files.exists(packageFile));
+        try (Stream<Path> files = Files.list(packageFile.getParent())) {
+            assertEquals(0, files.count());
+        }
+    }
+
+    private Path writePackage(PackageMode mode, boolean gzip, int threads, List<DigestType> digestTypes) throws IOException {
+        Path packageFile = folder.resolve("target").resolve(objectId + (gzip ? ".tar.gz" : ".tar"));
+        try (PackageWriter writer = new PackageWriter(mode, packageFile, objectId, digestTypes, gzip, threads, 6, 64 * 1024, 8 * 1024)) {
+            try (Stream<Path> files = Files.list(contentFolder)) {
+                for (Path file : (Iterable<Path>) files.sorted()::iterator) {
+                    writer.addContentFile(file, -1);
+                }
+            }
+            writer.addMetadataFile(metadataFile);
+            writer.publish();
+        }
+        assertTrue(Files.exists(packageFile));
+        return packageFile;
+    }
+
+    /**
+     * The package must contain exactly the source files in the content and metadata folders below the given path
+     */
+    private void assertPayload(Map<String, byte[]> entries, String payloadFolder) throws IOException {
+        try (Stream<Path> files = Files.list(contentFolder)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                String name = payloadFolder + "content/" + file.getFileName();
+                assertTrue(name, entries.containsKey(name));
+                assertArrayEquals(name, Files.readAllBytes(file), entries.get(name));
+            }
+        }
+        assertArrayEquals(Files.readAllBytes(metadataFile), entries.get(payloadFolder + "metadata/contentMetadata.xml"));
+    }
+
+    private static Map<String, byte[]> readTar(Path packageFile, boolean gzip) throws IOException {
+        Map<String, byte[]> entries = new LinkedHashMap<>();
+        try (InputStream in = gzip ? new GZIPInputStream(Files.newInputStream(packageFile)) : Files.newInputStream(packageFile);
+                TarArchiveInputStream tar = new TarArchiveInputStream(in, StandardCharsets.UTF_8.name())) {
+            TarArchiveEntry entry;
+            while ((entry = tar.getNextTarEntry()) != null) {
+                assertTrue(entry.isFile());
+                ByteArrayOutputStream data = new ByteArrayOutputStream();
+                tar.transferTo(data);
+                assertEquals(entry.getSize(), data.size());
+                assertFalse("Duplicate entry " + entry.getName(), entries.containsKey(entry.getName()));
+                entries.put(entry.getName(), data.toByteArray());
+            }
+        }
+        return entries;
+    }
+
+    private static Map<String, String> readManifest(Map<String, byte[]> entries, String name) {
+        assertTrue(name, entries.containsKey(name));
+        Map<String, String> manifest = new LinkedHashMap<>();
+        for (String line : new String(entries.get(name), StandardCharsets.UTF_8).split("\n")) {
+            int index = line.indexOf("  ");
+            assertTrue(line, index > 0);
+            manifest.put(line.substring(index + 2), line.substring(0, index));
+        }
+        return manifest;
+    }
+
+    private static String digest(DigestType digestType, byte[] data) {
+        return DigestType.toHex(digestType.createDigest().digest(data));
+    }
+
+    private static void createFile(Path file, Random random, int size) throws IOException {
+        byte[] data = new byte[size];
+        random.nextBytes(data);
+        // partly compressible, like real images
+        Arrays.fill(data, 0, size / 2, (byte) 0);
+        Files.write(file, data);
+    }
+}
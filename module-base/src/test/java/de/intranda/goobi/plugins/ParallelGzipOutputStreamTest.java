@@ -0,0 +1,74 @@
+package de.intranda.goobi.plugins;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.Test;
+
+/**
+ * The sequence of gzip members must be readable as a single gzip file
+ */
+public class ParallelGzipOutputStreamTest {
+
+    private static final int blockSize = 64 * 1024;
+
+    @Test
+    public void testSeveralBlocks() throws IOException {
+        byte[] data = createData(10 * blockSize + 123);
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (ParallelGzipOutputStream out = new ParallelGzipOutputStream(compressed, 4, blockSize, 6)) {
+            // write in chunks that don't match the block size
+            for (int offset = 0; offset < data.length; offset += 10_000) {
+                out.write(data, offset, Math.min(10_000, data.length - offset));
+            }
+        }
+        assertArrayEquals(data, decompress(compressed.toByteArray()));
+    }
+
+    @Test
+    public void testSingleBytesAndFlush() throws IOException {
+        byte[] data = createData(3 * blockSize);
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (ParallelGzipOutputStream out = new ParallelGzipOutputStream(compressed, 2, blockSize, 1)) {
+            for (int i = 0; i < 1000; i++) {
+                out.write(data[i]);
+            }
+            // a flush ends a member in the middle of a block
+            out.flush();
+            out.write(data, 1000, data.length - 1000);
+        }
+        assertArrayEquals(data, decompress(compressed.toByteArray()));
+    }
+
+    @Test
+    public void testExactBlockSizeAndEmpty() throws IOException {
+        for (int length : new int[] { 0, blockSize, 2 * blockSize }) {
+            byte[] data = createData(length);
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+            try (ParallelGzipOutputStream out = new ParallelGzipOutputStream(compressed, 3, blockSize, 9)) {
+                out.write(data);
+            }
+            assertArrayEquals(data, decompress(compressed.toByteArray()));
+        }
+    }
+
+    private static byte[] createData(int length) {
+        byte[] data = new byte[length];
+        new Random(length).nextBytes(data);
+        Arrays.fill(data, 0, length / 3, (byte) 'a');
+        return data;
+    }
+
+    private static byte[] decompress(byte[] compressed) throws IOException {
+        try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(compressed))) {
+            return in.readAllBytes();
+        }
+    }
+}
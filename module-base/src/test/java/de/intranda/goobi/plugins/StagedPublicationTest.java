@@ -0,0 +1,226 @@
+package de.intranda.goobi.plugins;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+import org.apache.commons.configuration.XMLConfiguration;
+import org.apache.commons.configuration.tree.xpath.XPathExpressionEngine;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import de.intranda.goobi.plugins.FileCopyEngine.CopyResult;
+
+/**
+ * Publications are done in temporary folders, the registry folder is configured so that the Goobi configuration is not needed
+ */
+public class StagedPublicationTest {
+
+    private static final String objectId = "bb123cd4567";
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private Path exportFolder;
+    private Path registryFolder;
+    private Path targetFolder;
+
+    @Before
+    public void setUp() throws IOException {
+        exportFolder = temporaryFolder.newFolder("export").toPath();
+        registryFolder = temporaryFolder.newFolder("registry").toPath();
+        targetFolder = exportFolder.resolve(objectId);
+    }
+
+    @Test
+    public void testSeededLinksAreNotModified() throws IOException, InterruptedException {
+        XMLConfiguration config = createConfiguration(true);
+        Path stagingFolder = StagedPublication.fromConfig(config, targetFolder).prepare();
+        write(stagingFolder.resolve("content/00000001.tif"), "first");
+        write(stagingFolder.resolve("content/00000002.tif"), "unchanged");
+        StagedPublication.fromConfig(config, targetFolder).publish();
+
+        Path sourceFolder = temporaryFolder.newFolder("source").toPath();
+        write(sourceFolder.resolve("00000001.tif"), "second");
+
+        StagedPublication publication = StagedPublication.fromConfig(config, targetFolder);
+        stagingFolder = publication.prepare();
+        assertTrue(Files.isSameFile(targetFolder.resolve("content/00000001.tif"), stagingFolder.resolve("content/00000001.tif")));
+        try (FileCopyEngine engine = new FileCopyEngine(1, 4096)) {
+            CopyResult result = engine.copyAndVerify(sourceFolder, Collections.singletonList("00000001.tif"), stagingFolder.resolve("content"));
+            assertTrue(result.isSuccessful());
+        }
+        // the published file is untouched until the staging folder is published
+        assertEquals("first", read(targetFolder.resolve("content/00000001.tif")));
+        assertEquals("second", read(stagingFolder.resolve("content/00000001.tif")));
+
+        publication.publish();
+        assertEquals("second", read(targetFolder.resolve("content/00000001.tif")));
+        assertEquals("unchanged", read(targetFolder.resolve("content/00000002.tif")));
+    }
+
+    @Test
+    public void testPublishLinkSwapsAtomically() throws Exception {
+        XMLConfiguration config = createConfiguration(true);
+        publishVersion(config, 0);
+
+        AtomicBoolean running = new AtomicBoolean(true);
+        AtomicInteger missing = new AtomicInteger();
+        Thread reader = new Thread(() -> {
+            while (running.get()) {
+                if (!Files.isRegularFile(targetFolder.resolve("content/version.txt"))) {
+                    missing.incrementAndGet();
+                }
+            }
+        });
+        reader.start();
+        try {
+            for (int version = 1; version <= 20; version++) {
+                publishVersion(config, version);
+            }
+        } finally {
+            running.set(false);
+            reader.join();
+        }
+        assertEquals(0, missing.get());
+        assertTrue(Files.isSymbolicLink(targetFolder));
+        assertEquals("20", read(targetFolder.resolve("content/version.txt")));
+
+        // only the current and the replaced version are kept
+        List<String> versions = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(exportFolder, objectId + ".v*")) {
+            for (Path folder : stream) {
+                versions.add(read(folder.resolve("content/version.txt")));
+            }
+        }
+        Collections.sort(versions);
+        assertEquals(List.of("19", "20"), versions);
+        assertFalse(Files.exists(exportFolder.resolve(objectId + ".link")));
+    }
+
+    @Test
+    public void testRenameFailureRestoresPreviousFolder() throws IOException {
+        XMLConfiguration config = createConfiguration(false);
+        publishVersion(config, 1);
+        assertFalse(Files.isSymbolicLink(targetFolder));
+
+        StagedPublication publication = StagedPublication.fromConfig(config, targetFolder);
+        Path stagingFolder = publication.prepare();
+        Files.delete(stagingFolder.resolve("content/version.txt"));
+        write(stagingFolder.resolve("content/version.txt"), "2");
+        // the staging folder disappears, so renaming it to the final name fails
+        deleteFolder(stagingFolder);
+        try {
+            publication.publish();
+            fail("Publishing a missing staging folder must fail");
+        } catch (IOException e) {
+            // expected
+        }
+        assertEquals("1", read(targetFolder.resolve("content/version.txt")));
+        assertFalse(Files.exists(exportFolder.resolve(objectId + ".previous")));
+
+        publication.discard();
+        assertFalse(Files.exists(registryFolder.resolve(objectId + ".staging")));
+    }
+
+    @Test
+    public void testLegacyFolderIsMigrated() throws IOException {
+        write(targetFolder.resolve("content/00000001.tif"), "legacy");
+        XMLConfiguration config = createConfiguration(true);
+
+        StagedPublication publication = StagedPublication.fromConfig(config, targetFolder);
+        Path stagingFolder = publication.prepare();
+        write(stagingFolder.resolve("content/00000002.tif"), "new");
+        publication.publish();
+
+        assertTrue(Files.isSymbolicLink(targetFolder));
+        assertEquals("legacy", read(targetFolder.resolve("content/00000001.tif")));
+        assertEquals("new", read(targetFolder.resolve("content/00000002.tif")));
+        assertFalse(Files.exists(exportFolder.resolve(objectId + ".previous")));
+        assertFalse(Files.exists(exportFolder.resolve(objectId + ".staging")));
+        assertFalse(Files.exists(registryFolder.resolve(objectId + ".staging")));
+    }
+
+    @Test
+    public void testCleanUpStale() throws IOException {
+        // publication of an earlier run, interrupted between the two renames
+        Path interrupted = exportFolder.resolve("bb111cd1111");
+        write(exportFolder.resolve("bb111cd1111.previous/content/00000001.tif"), "published");
+        write(exportFolder.resolve("bb111cd1111.staging/content/00000001.tif"), "staged");
+        Path staleRegistration = register(interrupted);
+        long startTime = ManagementFactory.getRuntimeMXBean().getStartTime();
+        Files.setLastModifiedTime(staleRegistration, FileTime.fromMillis(startTime - 60_000));
+
+        // export running in the current run
+        Path running = exportFolder.resolve("bb222cd2222");
+        write(exportFolder.resolve("bb222cd2222.staging/content/00000001.tif"), "staged");
+        Path currentRegistration = register(running);
+
+        StagedPublication.cleanUpStale(createConfiguration(true));
+
+        assertEquals("published", read(interrupted.resolve("content/00000001.tif")));
+        assertFalse(Files.exists(exportFolder.resolve("bb111cd1111.previous")));
+        assertFalse(Files.exists(exportFolder.resolve("bb111cd1111.staging")));
+        assertFalse(Files.exists(staleRegistration));
+
+        assertTrue(Files.exists(exportFolder.resolve("bb222cd2222.staging/content/00000001.tif")));
+        assertTrue(Files.exists(currentRegistration));
+    }
+
+    private XMLConfiguration createConfiguration(boolean symlink) {
+        XMLConfiguration config = new XMLConfiguration();
+        config.setProperty("staging[@enabled]", true);
+        config.setProperty("staging[@symlink]", symlink);
+        config.setProperty("staging[@registryFolder]", registryFolder.toString());
+        config.setExpressionEngine(new XPathExpressionEngine());
+        return config;
+    }
+
+    private void publishVersion(XMLConfiguration config, int version) throws IOException {
+        StagedPublication publication = StagedPublication.fromConfig(config, targetFolder);
+        Path stagingFolder = publication.prepare();
+        // never write into a seeded file, it is a hard link to the published one
+        Files.deleteIfExists(stagingFolder.resolve("content/version.txt"));
+        write(stagingFolder.resolve("content/version.txt"), String.valueOf(version));
+        publication.publish();
+    }
+
+    private Path register(Path folder) throws IOException {
+        Path registration = registryFolder.resolve(folder.getFileName().toString() + ".staging");
+        Files.writeString(registration, folder.toString(), StandardCharsets.UTF_8);
+        return registration;
+    }
+
+    private static void write(Path file, String content) throws IOException {
+        Files.createDirectories(file.getParent());
+        Files.writeString(file, content, StandardCharsets.UTF_8);
+    }
+
+    private static String read(Path file) throws IOException {
+        return Files.readString(file, StandardCharsets.UTF_8);
+    }
+
+    private static void deleteFolder(Path folder) throws IOException {
+        try (Stream<Path> files = Files.walk(folder)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package de.intranda.goobi.plugins.benchmark;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the GC profiler enabled, so that the allocation rate is reported next to the throughput. All JMH command line options
+ * can be used, e.g. <code>java -jar benchmarks.jar CopyBenchmark -p pages=2000 -p imageSize=40960</code>.
+ *
+ * The option <code>--large</code> runs the copy benchmark with volumes of the size of large Stanford objects instead of the default parameters:
+ * 2000 pages with images of 1 and 4 MB, so each volume has 2 or 8 GB. The volumes are generated in the temporary folder of the forked JVM and
+ * copied once more into it, so up to 20 GB of free space are needed. Parameters given with <code>-p</code> take precedence.
+ */
+public class BenchmarkRunner {
+
+    private static final String largeOption = "--large";
+    private static final String largePages = "2000";
+    private static final String[] largeImageSizes = { "1024", "4096" };
+
+    public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+        List<String> arguments = new ArrayList<>(Arrays.asList(args));
+        boolean large = arguments.remove(largeOption);
+        CommandLineOptions commandLine = new CommandLineOptions(arguments.toArray(new String[arguments.size()]));
+        ChainedOptionsBuilder builder = new OptionsBuilder().parent(commandLine).addProfiler(GCProfiler.class);
+        if (large) {
+            if (commandLine.getIncludes().isEmpty()) {
+                builder.include(CopyBenchmark.class.getSimpleName());
+            }
+            if (!commandLine.getParameter("pages").hasValue()) {
+                builder.param("pages", largePages);
+            }
+            if (!commandLine.getParameter("imageSize").hasValue()) {
+                builder.param("imageSize", largeImageSizes);
+            }
+        }
+        Options options = builder.build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,86 @@
+package de.intranda.goobi.plugins.benchmark;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.intranda.goobi.plugins.FileCopyEngine;
+import de.intranda.goobi.plugins.FileCopyEngine.CopyResult;
+import de.intranda.goobi.plugins.TransferStrategy;
+
+/**
+ * Copy and verification of a complete volume (images, ALTO and single page PDFs) into an empty export folder
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 5)
+@Fork(1)
+public class CopyBenchmark {
+
+    @Param({ "100", "500" })
+    private int pages;
+
+    /** size of a single image in KB */
+    @Param({ "1024", "10240" })
+    private int imageSize;
+
+    @Param({ "1", "4" })
+    private int threads;
+
+    @Param({ "COPY", "TRANSFER", "HARDLINK" })
+    private TransferStrategy strategy;
+
+    private SyntheticVolume volume;
+    private FileCopyEngine copyEngine;
+    private Path exportFolder;
+
+    @Setup(Level.Trial)
+    public void createVolume() throws IOException {
+        volume = new SyntheticVolume(pages, imageSize * 1024L, 40);
+        copyEngine = new FileCopyEngine(threads, 1024 * 1024, strategy, Collections.emptyList(), Long.MAX_VALUE);
+    }
+
+    @Setup(Level.Iteration)
+    public void cleanExportFolder() throws IOException {
+        exportFolder = volume.createFolder("export");
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteVolume() throws IOException {
+        copyEngine.close();
+        volume.delete();
+    }
+
+    @Benchmark
+    public long copyAndVerify() throws InterruptedException {
+        long bytes = 0;
+        bytes += check(copyEngine.copyAndVerify(volume.getImageFolder(), volume.getImageFileNames(), exportFolder));
+        bytes += check(copyEngine.copyAndVerify(volume.getAltoFolder(), volume.getAltoFileNames(), exportFolder));
+        bytes += check(copyEngine.copyAndVerify(volume.getPdfFolder(), volume.getPdfFileNames(), exportFolder));
+        return bytes;
+    }
+
+    private static long check(CopyResult result) {
+        if (!result.isSuccessful()) {
+            throw new IllegalStateException(result.getErrorMessage());
+        }
+        return result.getBytes();
+    }
+}
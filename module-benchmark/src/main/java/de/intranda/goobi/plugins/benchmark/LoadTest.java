@@ -0,0 +1,253 @@
+package de.intranda.goobi.plugins.benchmark;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.configuration.ConfigurationException;
+import org.apache.commons.configuration.XMLConfiguration;
+import org.apache.commons.configuration.tree.xpath.XPathExpressionEngine;
+
+import de.intranda.goobi.plugins.ExportJob;
+import de.intranda.goobi.plugins.ExportLimits;
+import de.intranda.goobi.plugins.ExportLimits.Phase;
+import de.intranda.goobi.plugins.ExportResult;
+import de.intranda.goobi.plugins.ExportResult.PhaseStatistics;
+import de.intranda.goobi.plugins.ExportResult.ThrottleStatistics;
+import de.intranda.goobi.plugins.StanfordExportPlugin;
+
+/**
+ * Load test of the complete export pipeline without Goobi and without network access.
+ *
+ * Synthetic volumes are generated in the temporary folder and exported as objects by several workers at the same time, the accession requests are
+ * sent to a local mock server. At the end the throughput, the latency percentiles of each phase and the errors are printed. All options are
+ * optional:
+ *
+ * <pre>
+ * java -cp benchmarks.jar de.intranda.goobi.plugins.benchmark.LoadTest --objects 200 --concurrency 8 --pages 300 --imageSize 10240
+ *     --latency 200 --errorRate 0.05 --config plugin_intranda_export_stanford.xml
+ * </pre>
+ */
+public class LoadTest {
+
+    private static final Map<String, String> defaults = new TreeMap<>();
+
+    static {
+        defaults.put("objects", "20");
+        defaults.put("concurrency", "4");
+        defaults.put("volumes", "1");
+        defaults.put("pages", "100");
+        defaults.put("imageSize", "1024");
+        defaults.put("pdfLines", "40");
+        defaults.put("contentType", "book");
+        defaults.put("packageMode", "");
+        defaults.put("latency", "50");
+        defaults.put("errorRate", "0");
+        defaults.put("copies", "0");
+        defaults.put("merges", "0");
+        defaults.put("apiCalls", "0");
+        defaults.put("config", "");
+        defaults.put("keep", "false");
+    }
+
+    private final Map<String, String> options;
+
+    private LoadTest(Map<String, String> options) {
+        this.options = options;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>(defaults);
+        for (int i = 0; i < args.length; i += 2) {
+            String name = args[i].replaceFirst("^--", "");
+            if (!defaults.containsKey(name) || i + 1 >= args.length) {
+                System.err.println("Unknown option or missing value: " + args[i]);
+                System.err.println("Options and their defaults: " + defaults);
+                System.exit(1);
+            }
+            options.put(name, args[i + 1]);
+        }
+        new LoadTest(options).run();
+    }
+
+    private int getInt(String name) {
+        return Integer.parseInt(options.get(name));
+    }
+
+    private void run() throws IOException, ConfigurationException, InterruptedException {
+        int objects = getInt("objects");
+        int concurrency = getInt("concurrency");
+        Path workFolder = Files.createTempDirectory("stanford-loadtest-");
+        List<SyntheticVolume> volumes = new ArrayList<>();
+        try (MockAccessionServer server = new MockAccessionServer(Long.parseLong(options.get("latency")),
+                Double.parseDouble(options.get("errorRate")))) {
+            System.out.println("Generating " + getInt("volumes") + " volumes with " + getInt("pages") + " pages");
+            for (int i = 0; i < getInt("volumes"); i++) {
+                volumes.add(new SyntheticVolume(getInt("pages"), getInt("imageSize") * 1024L, getInt("pdfLines")));
+            }
+            XMLConfiguration config = createConfiguration(workFolder, server.getBaseUrl());
+            // the plugin gets configuration and temporary folder directly, so no Goobi configuration folder is needed
+            StanfordExportPlugin plugin = new StanfordExportPlugin(Files.createDirectories(workFolder.resolve("temp")));
+            ExportLimits limits = new ExportLimits(getLimit("copies", concurrency), getLimit("merges", concurrency),
+                    getLimit("apiCalls", concurrency));
+
+            System.out.println("Exporting " + objects + " objects with " + concurrency + " workers into " + workFolder);
+            ExecutorService executor = Executors.newFixedThreadPool(concurrency);
+            List<ExportResult> results = new ArrayList<>(objects);
+            long start = System.nanoTime();
+            try {
+                List<Future<ExportResult>> futures = new ArrayList<>(objects);
+                for (int i = 0; i < objects; i++) {
+                    ExportJob job = createJob(i, volumes.get(i % volumes.size()));
+                    futures.add(executor.submit(() -> export(plugin, job, config, limits)));
+                }
+                for (Future<ExportResult> future : futures) {
+                    try {
+                        results.add(future.get());
+                    } catch (ExecutionException e) {
+                        ExportResult result = new ExportResult(null, "unknown");
+                        result.addProblem(String.valueOf(e.getCause()));
+                        results.add(result);
+                    }
+                }
+            } finally {
+                executor.shutdownNow();
+            }
+            long durationMillis = (System.nanoTime() - start) / 1_000_000;
+            printReport(results, durationMillis, concurrency, server);
+        } finally {
+            for (SyntheticVolume volume : volumes) {
+                volume.delete();
+            }
+            if (!Boolean.parseBoolean(options.get("keep"))) {
+                SyntheticVolume.delete(workFolder);
+            }
+        }
+    }
+
+    private int getLimit(String name, int concurrency) {
+        int limit = getInt(name);
+        return limit > 0 ? limit : concurrency;
+    }
+
+    /**
+     * Use the given plugin configuration, but export into the work folder, call the mock server and don't wait for the storage
+     */
+    private XMLConfiguration createConfiguration(Path workFolder, String apiBaseUrl) throws ConfigurationException {
+        String configFile = options.get("config");
+        XMLConfiguration config = configFile.isEmpty() ? new XMLConfiguration() : new XMLConfiguration(configFile);
+        config.setProperty("destination", workFolder.resolve("export").toString());
+        config.setProperty("tempDestination", "");
+        config.setProperty("apiBaseUrl", apiBaseUrl);
+        config.setProperty("accessToken", "loadtest");
+        config.setProperty("initialDelay", 0);
+        config.setProperty("delay", 0);
+        config.setProperty("readiness[@enabled]", false);
+        config.setProperty("accessionQueue[@enabled]", false);
+        config.setProperty("staging[@registryFolder]", workFolder.resolve("staging").toString());
+        config.setExpressionEngine(new XPathExpressionEngine());
+        return config;
+    }
+
+    private ExportJob createJob(int index, SyntheticVolume volume) {
+        Map<String, String> properties = new HashMap<>();
+        // object ids have the format of a druid: two letters, three digits, two letters, four digits
+        properties.put("objectId", String.format("druid:bc%03ddf%04d", index / 10000 % 1000, index % 10000));
+        properties.put("contentType", options.get("contentType"));
+        if (!options.get("packageMode").isEmpty()) {
+            properties.put("packageMode", options.get("packageMode"));
+        }
+        return new ExportJob(index, "loadtest_" + index, volume.getImageFolder(), volume.getAltoFolder(), volume.getPdfFolder(), properties);
+    }
+
+    private static ExportResult export(StanfordExportPlugin plugin, ExportJob job, XMLConfiguration config, ExportLimits limits) {
+        try {
+            return plugin.export(job, config, limits);
+        } catch (IOException | InterruptedException | RuntimeException e) {
+            ExportResult result = new ExportResult(job.getProcessId(), job.getTitle());
+            result.addProblem("Error while exporting " + job.getTitle() + ": " + e);
+            return result;
+        }
+    }
+
+    private static void printReport(List<ExportResult> results, long durationMillis, int concurrency, MockAccessionServer server) {
+        int successful = 0;
+        long bytes = 0;
+        long throttleMillis = 0;
+        int lowestConcurrency = Integer.MAX_VALUE;
+        int concurrencyDecreases = 0;
+        List<Long> totalDurations = new ArrayList<>();
+        Map<Phase, List<Long>> phaseDurations = new EnumMap<>(Phase.class);
+        Map<String, Integer> problems = new TreeMap<>();
+        for (ExportResult result : results) {
+            if (result.isSuccessful()) {
+                successful++;
+            }
+            bytes += result.getBytes();
+            ThrottleStatistics throttle = result.getThrottle();
+            throttleMillis += throttle.getWaitMillis();
+            concurrencyDecreases += throttle.getDecreases();
+            if (throttle.getLowestConcurrency() > 0) {
+                lowestConcurrency = Math.min(lowestConcurrency, throttle.getLowestConcurrency());
+            }
+            totalDurations.add(result.getDurationMillis());
+            for (Map.Entry<Phase, PhaseStatistics> phase : result.getPhases().entrySet()) {
+                phaseDurations.computeIfAbsent(phase.getKey(), p -> new ArrayList<>()).add(phase.getValue().getDurationMillis());
+            }
+            for (String problem : result.getProblems()) {
+                problems.merge(problem, 1, Integer::sum);
+            }
+        }
+
+        double seconds = Math.max(durationMillis, 1) / 1000d;
+        System.out.println();
+        System.out.println(String.format("Exported %d objects (%d successful, %d failed) with %d workers in %.1f s", results.size(), successful,
+                results.size() - successful, concurrency, seconds));
+        System.out.println(String.format("Throughput: %.1f objects/min, %.3f GB/s", results.size() * 60 / seconds,
+                bytes / (1024d * 1024d * 1024d) / seconds));
+        System.out.println();
+        System.out.println(String.format("%-10s %8s %10s %10s %10s %10s", "phase (ms)", "count", "p50", "p95", "p99", "max"));
+        for (Map.Entry<Phase, List<Long>> phase : phaseDurations.entrySet()) {
+            printPercentiles(phase.getKey().name(), phase.getValue());
+        }
+        printPercentiles("TOTAL", totalDurations);
+        System.out.println();
+        System.out.println("Accession server: " + server.getRequests() + " requests, " + server.getErrors() + " errors");
+        System.out.println(String.format("Throttling: %.1f s waiting for bandwidth, %d concurrency reductions, lowest concurrency %s",
+                throttleMillis / 1000d, concurrencyDecreases, lowestConcurrency == Integer.MAX_VALUE ? "-" : String.valueOf(lowestConcurrency)));
+        if (!problems.isEmpty()) {
+            System.out.println("Problems:");
+            for (Map.Entry<String, Integer> problem : problems.entrySet()) {
+                System.out.println(String.format("%6dx %s", problem.getValue(), problem.getKey()));
+            }
+        }
+    }
+
+    private static void printPercentiles(String name, List<Long> durations) {
+        if (durations.isEmpty()) {
+            return;
+        }
+        Collections.sort(durations);
+        System.out.println(String.format("%-10s %8d %10d %10d %10d %10d", name, durations.size(), percentile(durations, 50),
+                percentile(durations, 95), percentile(durations, 99), durations.get(durations.size() - 1)));
+    }
+
+    /**
+     * Nearest rank percentile of a sorted list
+     */
+    private static long percentile(List<Long> sortedValues, int percentile) {
+        int rank = (int) Math.ceil(percentile / 100d * sortedValues.size());
+        return sortedValues.get(Math.max(rank - 1, 0));
+    }
+}
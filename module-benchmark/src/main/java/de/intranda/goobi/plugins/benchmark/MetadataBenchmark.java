@@ -0,0 +1,96 @@
+package de.intranda.goobi.plugins.benchmark;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import de.intranda.goobi.plugins.ContentMetadataWriter;
+
+/**
+ * Generation and serialization of the content metadata file. The output is consumed by a blackhole, so only the generation is measured and not
+ * the storage.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MetadataBenchmark {
+
+    @Param({ "100", "2000", "20000" })
+    private int pages;
+
+    @Param({ "true", "false" })
+    private boolean withOcr;
+
+    private List<String> imageFileNames;
+    private List<String> altoFileNames;
+    private List<String> pdfFileNames;
+
+    @Setup
+    public void createFileNames() {
+        imageFileNames = new ArrayList<>(pages);
+        altoFileNames = new ArrayList<>(pages);
+        pdfFileNames = new ArrayList<>(pages);
+        for (int page = 1; page <= pages; page++) {
+            String baseName = String.format("%08d", page);
+            imageFileNames.add(baseName + ".tif");
+            altoFileNames.add(baseName + ".xml");
+            pdfFileNames.add(baseName + ".pdf");
+        }
+    }
+
+    @Benchmark
+    public void writeContentMetadata(Blackhole blackhole) throws IOException {
+        try (ContentMetadataWriter writer = new ContentMetadataWriter(new BlackholeWriter(blackhole))) {
+            writer.writeContent("book", imageFileNames, withOcr ? altoFileNames : null, withOcr ? pdfFileNames : null, "bb123cd4567");
+        }
+    }
+
+    private static class BlackholeWriter extends Writer {
+        private final Blackhole blackhole;
+
+        BlackholeWriter(Blackhole blackhole) {
+            this.blackhole = blackhole;
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) {
+            blackhole.consume(cbuf);
+        }
+
+        @Override
+        public void write(int c) {
+            blackhole.consume(c);
+        }
+
+        @Override
+        public void write(String str) {
+            blackhole.consume(str);
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
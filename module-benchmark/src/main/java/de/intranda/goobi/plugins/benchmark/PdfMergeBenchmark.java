@@ -0,0 +1,76 @@
+package de.intranda.goobi.plugins.benchmark;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.intranda.goobi.plugins.PdfMerger;
+import de.intranda.goobi.plugins.PdfMerger.MergeResult;
+
+/**
+ * Merge of single page PDFs into the complete PDF file, with everything in memory (-1) and with a limited amount of memory
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class PdfMergeBenchmark {
+
+    @Param({ "100", "1000", "5000" })
+    private int pages;
+
+    /** memory limit of the merge in MB */
+    @Param({ "-1", "64" })
+    private int maxMainMemory;
+
+    @Param({ "500" })
+    private int chunkSize;
+
+    /** text lines on each page, controls the size of the single page PDFs */
+    @Param({ "40", "400" })
+    private int linesPerPage;
+
+    private SyntheticVolume volume;
+    private List<Path> sourceFiles;
+    private Path exportFolder;
+    private PdfMerger merger;
+
+    @Setup(Level.Trial)
+    public void createVolume() throws IOException {
+        volume = new SyntheticVolume(pages, 0, linesPerPage);
+        sourceFiles = new ArrayList<>(pages);
+        for (String name : volume.getPdfFileNames()) {
+            sourceFiles.add(volume.getPdfFolder().resolve(name));
+        }
+        exportFolder = volume.createFolder("export");
+        merger = new PdfMerger(maxMainMemory < 0 ? -1 : maxMainMemory * 1024L * 1024L, chunkSize, null);
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteVolume() throws IOException {
+        volume.delete();
+    }
+
+    @Benchmark
+    public MergeResult merge() throws IOException {
+        return merger.merge(sourceFiles, exportFolder.resolve("bb123cd4567.pdf"));
+    }
+}
@@ -0,0 +1,170 @@
+package de.intranda.goobi.plugins.benchmark;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.PDPageContentStream;
+import org.apache.pdfbox.pdmodel.font.PDType1Font;
+import org.apache.pdfbox.pdmodel.font.Standard14Fonts;
+
+/**
+ * Generates a Goobi-like process folder with images, ALTO files and single page PDFs in a temporary folder
+ */
+public class SyntheticVolume {
+
+    private final Path root;
+    private final Path imageFolder;
+    private final Path altoFolder;
+    private final Path pdfFolder;
+    private final List<String> imageFileNames = new ArrayList<>();
+    private final List<String> altoFileNames = new ArrayList<>();
+    private final List<String> pdfFileNames = new ArrayList<>();
+
+    /**
+     * 
+     * @param pages number of pages
+     * @param imageSize size of each image file in bytes
+     * @param pdfLines number of text lines on each single page PDF, use 0 to generate no PDFs
+     * @throws IOException
+     */
+    public SyntheticVolume(int pages, long imageSize, int pdfLines) throws IOException {
+        root = Files.createTempDirectory("stanford-benchmark-");
+        imageFolder = Files.createDirectories(root.resolve("images").resolve("volume_media"));
+        altoFolder = Files.createDirectories(root.resolve("ocr").resolve("volume_alto"));
+        pdfFolder = Files.createDirectories(root.resolve("ocr").resolve("volume_pdf"));
+
+        // random data, so that the files cannot be compressed or deduplicated by the storage
+        Random random = new Random(pages);
+        byte[] block = new byte[1024 * 1024];
+        for (int page = 1; page <= pages; page++) {
+            String baseName = String.format("%08d", page);
+            imageFileNames.add(baseName + ".tif");
+            try (OutputStream out = Files.newOutputStream(imageFolder.resolve(baseName + ".tif"))) {
+                long remaining = imageSize;
+                while (remaining > 0) {
+                    random.nextBytes(block);
+                    int length = (int) Math.min(block.length, remaining);
+                    out.write(block, 0, length);
+                    remaining -= length;
+                }
+            }
+
+            altoFileNames.add(baseName + ".xml");
+            try (Writer writer = Files.newBufferedWriter(altoFolder.resolve(baseName + ".xml"), StandardCharsets.UTF_8)) {
+                writeAlto(writer, page);
+            }
+
+            if (pdfLines > 0) {
+                pdfFileNames.add(baseName + ".pdf");
+                writePdf(pdfFolder.resolve(baseName + ".pdf"), page, pdfLines);
+            }
+        }
+    }
+
+    private static void writeAlto(Writer writer, int page) throws IOException {
+        writer.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+        writer.write("<alto xmlns=\"http://www.loc.gov/standards/alto/ns-v4#\">\n  <Layout>\n");
+        writer.write("    <Page ID=\"Page" + page + "\" PHYSICAL_IMG_NR=\"" + page + "\" WIDTH=\"2480\" HEIGHT=\"3508\">\n      <PrintSpace>\n");
+        for (int line = 0; line < 40; line++) {
+            writer.write("        <TextLine ID=\"line_" + line + "\" HPOS=\"100\" VPOS=\"" + (100 + line * 80) + "\" WIDTH=\"2200\" HEIGHT=\"60\">\n");
+            for (int word = 0; word < 10; word++) {
+                writer.write("          <String CONTENT=\"word" + word + "\" HPOS=\"" + (100 + word * 220) + "\" VPOS=\"" + (100 + line * 80)
+                        + "\" WIDTH=\"200\" HEIGHT=\"60\" WC=\"0.95\"/>\n");
+            }
+            writer.write("        </TextLine>\n");
+        }
+        writer.write("      </PrintSpace>\n    </Page>\n  </Layout>\n</alto>\n");
+    }
+
+    private static void writePdf(Path file, int page, int lines) throws IOException {
+        try (PDDocument document = new PDDocument()) {
+            PDPage pdPage = new PDPage();
+            document.addPage(pdPage);
+            try (PDPageContentStream content = new PDPageContentStream(document, pdPage)) {
+                content.beginText();
+                content.setFont(new PDType1Font(Standard14Fonts.FontName.HELVETICA), 12);
+                content.newLineAtOffset(50, 700);
+                for (int line = 0; line < lines; line++) {
+                    content.showText("Page " + page + ", line " + line + " of the synthetic benchmark volume");
+                    content.newLineAtOffset(0, -15);
+                }
+                content.endText();
+            }
+            document.save(file.toFile());
+        }
+    }
+
+    /**
+     * Create a new empty folder inside of the volume, e.g. as export target
+     * 
+     * @param name
+     * @return
+     * @throws IOException
+     */
+    public Path createFolder(String name) throws IOException {
+        Path folder = root.resolve(name);
+        delete(folder);
+        return Files.createDirectories(folder);
+    }
+
+    public Path getImageFolder() {
+        return imageFolder;
+    }
+
+    public Path getAltoFolder() {
+        return altoFolder;
+    }
+
+    public Path getPdfFolder() {
+        return pdfFolder;
+    }
+
+    public List<String> getImageFileNames() {
+        return imageFileNames;
+    }
+
+    public List<String> getAltoFileNames() {
+        return altoFileNames;
+    }
+
+    public List<String> getPdfFileNames() {
+        return pdfFileNames;
+    }
+
+    /**
+     * Remove all generated files
+     * 
+     * @throws IOException
+     */
+    public void delete() throws IOException {
+        delete(root);
+    }
+
+    /**
+     * Delete a folder with all its content
+     * 
+     * @param folder
+     * @throws IOException
+     */
+    static void delete(Path folder) throws IOException {
+        if (!Files.exists(folder)) {
+            return;
+        }
+        try (Stream<Path> files = Files.walk(folder)) {
+            for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(file);
+            }
+        }
+    }
+}